@@ -0,0 +1,150 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Adjusts how many requests a channel lets into flight from the round trip times it observes (AIMD).
+ *
+ * The lowest round trip time seen recently is taken as the no load latency. While responses come back within
+ * tolerance times that, and the channel is actually using its limit, the limit grows by about one per limit's worth
+ * of responses. A slower response or a timeout cuts the limit by backoffRatio, at most once per round trip so that
+ * one burst of slow responses counts as one signal.
+ *
+ * Under steady load every sample includes some queueing, so simply forgetting old samples would let the no load
+ * latency, and with it the limit, creep upwards. Instead every PROBE_INTERVAL samples the limit is halved for a
+ * couple of round trips to drain the queue, the no load latency is re-measured from what comes back meanwhile, and
+ * the limit is restored.
+ */
+class AdaptiveLimit {
+
+    static final double DEFAULT_TOLERANCE = 2.0;
+    static final double DEFAULT_BACKOFF_RATIO = 0.9;
+    private static final int PROBE_INTERVAL = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoffRatio;
+    private final IntConsumer onChange;
+
+    private double limit;
+    private long noLoadRttNanos = Long.MAX_VALUE;
+    private int samples = 0;
+    private long lastDecreaseNanos = 0;
+    private boolean probing = false;
+    private long probeEndNanos;
+    private long probeMinRttNanos;
+    private double limitBeforeProbe;
+
+    private volatile int currentLimit;
+    private volatile long increases = 0;
+    private volatile long decreases = 0;
+
+    AdaptiveLimit(int minLimit, int maxLimit, double tolerance, double backoffRatio, IntConsumer onChange) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("invalid limits, min -> " + minLimit + ", max -> " + maxLimit);
+        }
+        if (tolerance < 1.0 || backoffRatio <= 0.0 || backoffRatio >= 1.0) {
+            throw new IllegalArgumentException("invalid tolerance or backoff ratio");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoffRatio = backoffRatio;
+        this.onChange = onChange;
+        // start low and let the limit earn its way up, like slow start
+        this.limit = minLimit;
+        this.currentLimit = minLimit;
+        onChange.accept(minLimit);
+    }
+
+    int getLimit() {
+        return currentLimit;
+    }
+
+    long getIncreases() {
+        return increases;
+    }
+
+    long getDecreases() {
+        return decreases;
+    }
+
+    /**
+     * @return the no load round trip time in microseconds, 0 before the first sample
+     */
+    synchronized long getNoLoadRttMicros() {
+        return noLoadRttNanos == Long.MAX_VALUE ? 0 : noLoadRttNanos / 1000;
+    }
+
+    /**
+     * @param rttNanos time from sending the request to its response
+     * @param inFlight requests in flight when it was sent
+     */
+    synchronized void onResponse(long rttNanos, int inFlight, long nowNanos) {
+        if (probing) {
+            probeMinRttNanos = Math.min(probeMinRttNanos, rttNanos);
+            if (nowNanos - probeEndNanos >= 0) {
+                probing = false;
+                noLoadRttNanos = probeMinRttNanos;
+                set(limitBeforeProbe);
+            }
+            return;
+        }
+        noLoadRttNanos = Math.min(noLoadRttNanos, rttNanos);
+        if (++samples >= PROBE_INTERVAL) {
+            samples = 0;
+            probing = true;
+            probeEndNanos = nowNanos + 2 * rttNanos;
+            probeMinRttNanos = Long.MAX_VALUE;
+            limitBeforeProbe = limit;
+            set(Math.max(minLimit, limit / 2));
+            return;
+        }
+        if (rttNanos > tolerance * noLoadRttNanos) {
+            decrease(nowNanos, rttNanos);
+        } else if (2 * inFlight >= limit) {
+            // growing while the channel is not using what it has would let the limit run away
+            update(Math.min(maxLimit, limit + 1.0 / limit));
+        }
+    }
+
+    /**
+     * A request timed out, treated as the strongest sign of overload.
+     */
+    synchronized void onDrop(long nowNanos) {
+        decrease(nowNanos, noLoadRttNanos == Long.MAX_VALUE ? 0 : noLoadRttNanos);
+    }
+
+    private void decrease(long nowNanos, long rttNanos) {
+        if (nowNanos - lastDecreaseNanos < rttNanos) {
+            return;
+        }
+        lastDecreaseNanos = nowNanos;
+        if (probing) {
+            limitBeforeProbe = Math.max(minLimit, limitBeforeProbe * backoffRatio);
+            return;
+        }
+        update(Math.max(minLimit, limit * backoffRatio));
+    }
+
+    private void update(double newLimit) {
+        int previous = currentLimit;
+        set(newLimit);
+        if (currentLimit > previous) {
+            increases++;
+        } else if (currentLimit < previous) {
+            decreases++;
+        }
+    }
+
+    // probes move the limit without counting as increases or decreases
+    private void set(double newLimit) {
+        limit = newLimit;
+        int rounded = (int) newLimit;
+        if (rounded != currentLimit) {
+            currentLimit = rounded;
+            onChange.accept(rounded);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of requests a channel has in flight, i.e. sent or about to be sent and not yet answered, expired
+ * or canceled.
+ *
+ * Callers that may block wait in {@link #acquire(long)} until a release or a higher limit signals them. Callers that
+ * may not block can leave a continuation with {@link #defer(Runnable)}. It runs, holding a permit, on whichever thread
+ * releases capacity next.
+ */
+class Admission {
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+    private final int maxQueued;
+    private volatile int limit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition capacity = lock.newCondition();
+    // callers waiting in acquire, so that releasing only takes the lock when one of them may take the permit
+    private final AtomicInteger blocked = new AtomicInteger(0);
+    private volatile boolean closed = false;
+
+    Admission(int limit, int maxQueued) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        this.limit = limit;
+        this.maxQueued = maxQueued;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    void setLimit(int limit) {
+        int previous = this.limit;
+        this.limit = limit;
+        if (limit > previous) {
+            admitWaiters();
+            signalBlocked(true);
+        }
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    int getQueued() {
+        return queued.get();
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Blocks until a permit is free, the deadline passes or the admission is closed.
+     *
+     * @param deadlineNanos System.nanoTime() to give up at, Long.MAX_VALUE to wait for as long as it takes
+     * @return false if the deadline passed or the admission was closed first
+     */
+    boolean acquire(long deadlineNanos) throws InterruptedException {
+        if (tryAcquire()) {
+            return true;
+        }
+        lock.lockInterruptibly();
+        // counted before trying again, so that a release either leaves its permit to the try or signals the wait
+        blocked.incrementAndGet();
+        try {
+            while (!closed) {
+                if (tryAcquire()) {
+                    return true;
+                }
+                if (deadlineNanos == Long.MAX_VALUE) {
+                    capacity.await();
+                } else {
+                    long remainingNanos = deadlineNanos - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        return false;
+                    }
+                    capacity.awaitNanos(remainingNanos);
+                }
+            }
+            return false;
+        } finally {
+            blocked.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+        admitWaiters();
+        signalBlocked(false);
+    }
+
+    /**
+     * Wakes every caller blocked in acquire and fails the ones that come after, for shutting down.
+     */
+    void close() {
+        closed = true;
+        signalBlocked(true);
+    }
+
+    /**
+     * @return false if maxQueued continuations are already waiting
+     */
+    boolean defer(Runnable continuation) {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+        waiters.add(continuation);
+        // capacity may have been released between the caller's tryAcquire and the add above
+        admitWaiters();
+        return true;
+    }
+
+    /**
+     * Runs every waiting continuation with a permit whether or not there is capacity, for shutting down. The owner
+     * is expected to have closed by then so the continuations fail and release instead of sending.
+     */
+    void flushWaiters() {
+        Runnable waiter;
+        while ((waiter = waiters.poll()) != null) {
+            queued.decrementAndGet();
+            inFlight.incrementAndGet();
+            waiter.run();
+        }
+    }
+
+    private void signalBlocked(boolean all) {
+        if (blocked.get() == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (all) {
+                capacity.signalAll();
+            } else {
+                capacity.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void admitWaiters() {
+        while (!waiters.isEmpty()) {
+            if (!tryAcquire()) {
+                return;
+            }
+            Runnable waiter = waiters.poll();
+            if (waiter == null) {
+                // another thread admitted it first
+                inFlight.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            waiter.run();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.livefyre.protobuf.rpc;
+
+/**
+ * Byte arrays to serialize outgoing messages into, kept by size class so that a steady stream of messages of similar
+ * sizes allocates none.
+ *
+ * Not thread safe, each io thread handler keeps its own. Buffers may go back as soon as the socket's send returns,
+ * since sending from an offset copies the bytes into a message of their own.
+ */
+class BufferPool {
+
+    // 256 bytes, smaller messages still get a buffer of this class
+    private static final int MIN_SHIFT = 8;
+    // 4MB, larger messages get a buffer of their exact size that is not kept
+    private static final int MAX_SHIFT = 22;
+
+    private final byte[][][] classes = new byte[MAX_SHIFT - MIN_SHIFT + 1][][];
+    private final int[] counts = new int[MAX_SHIFT - MIN_SHIFT + 1];
+    private long allocations = 0;
+
+    /**
+     * @param buffersPerClass buffers kept of each size, about as many as are acquired before being released
+     */
+    BufferPool(int buffersPerClass) {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new byte[buffersPerClass][];
+        }
+    }
+
+    /**
+     * @return a buffer of at least size bytes
+     */
+    byte[] acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            allocations++;
+            return new byte[size];
+        }
+        if (counts[sizeClass] > 0) {
+            byte[] buffer = classes[sizeClass][--counts[sizeClass]];
+            classes[sizeClass][counts[sizeClass]] = null;
+            return buffer;
+        }
+        allocations++;
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    void release(byte[] buffer) {
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass < 0 || buffer.length != 1 << (sizeClass + MIN_SHIFT)
+                || counts[sizeClass] == classes[sizeClass].length) {
+            return;
+        }
+        classes[sizeClass][counts[sizeClass]++] = buffer;
+    }
+
+    /**
+     * @return buffers allocated because none of the size was pooled
+     */
+    long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * @return the index of the smallest class holding size bytes, -1 if larger than any
+     */
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,60 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Which responses a channel caches and for how long, see {@link ChannelOptions#setCachePolicy(CachePolicy)}.
+ *
+ * Successful responses of the methods given a ttl are kept, keyed by method and serialized request, and a later call
+ * with the same request bytes completes with the cached response without being sent. Only cache methods whose
+ * response may be up to a ttl stale. The cache is bounded by the bytes of the requests and responses it holds, and
+ * admits and evicts entries by how often they are asked for (W-TinyLFU), so a scan of one-off requests does not
+ * flush the popular ones.
+ */
+public class CachePolicy {
+
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private final Map<String, Long> ttlMillis = new HashMap<>();
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * @param method    full name of the method, e.g. "package.Service.method"
+     * @param ttlMillis how long its responses are served from the cache
+     */
+    public CachePolicy setTtl(String method, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttl must be positive, method -> " + method);
+        }
+        this.ttlMillis.put(method, ttlMillis);
+        return this;
+    }
+
+    /**
+     * @return the method's ttl, 0 if its responses are not cached
+     */
+    public long getTtlMillis(MethodDescriptor method) {
+        Long ttl = ttlMillis.get(method.getFullName());
+        return ttl != null ? ttl : 0;
+    }
+
+    public Map<String, Long> getTtls() {
+        return Collections.unmodifiableMap(ttlMillis);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes bound on the serialized size of the cached requests and responses, plus a small overhead each
+     */
+    public CachePolicy setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+}
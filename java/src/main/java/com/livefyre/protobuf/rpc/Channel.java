@@ -1,11 +1,14 @@
 package com.livefyre.protobuf.rpc;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Descriptors.MethodDescriptor;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcChannel;
 import com.google.protobuf.RpcController;
+import com.google.protobuf.WireFormat;
 import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,106 +18,550 @@ import org.zeromq.ZMQ;
 import org.zeromq.ZMQException;
 import org.zeromq.ZMsg;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 
 public class Channel implements RpcChannel {
     private static final Logger logger = LoggerFactory.getLogger(Channel.class);
-    private final AtomicLong nextId = new AtomicLong(0);
-    private final Timer timer;
-    private final ExecutorService requestHandlerPool = Executors.newSingleThreadExecutor();
+    // ids tried before a call gives up because every slot it landed on is held by a request that did not complete
+    private static final int MAX_REGISTER_ATTEMPTS = 8;
+    // requests sent and responses read per pass of a lane, so neither direction starves the other
+    private static final int MAX_SEND_BATCH = 256;
+    private static final int MAX_RECEIVE_BATCH = 256;
+    private static final byte[] EMPTY_FRAME = new byte[0];
+    // request ids carry the lane that sent them above this bit, so a response finds its way back to the lane's table
+    private static final int LANE_SHIFT = 48;
+    private static final long SEQUENCE_MASK = (1L << LANE_SHIFT) - 1;
+    static final int MAX_LANES = 256;
+    // hedges and retries that can be saved up while calls are fast and succeed
+    private static final int MAX_HEDGE_BALANCE = 100;
+    private static final int MAX_RETRY_BALANCE = 100;
+    private final TimeoutWheel timeoutWheel;
     private final ExecutorService responseHandlerPool;
-    private final BlockingQueue<SocketRpcProtos.Request> requestQueue;
-    private final ConcurrentHashMap<Long, RequestMetadata> ongoingRequests = new ConcurrentHashMap<>();
+    private final Lane[] lanes;
+    private final AtomicInteger nextLane = new AtomicInteger(0);
+    private final Admission admission;
+    private final ChannelOptions.AdmissionPolicy admissionPolicy;
+    private final AdaptiveLimit adaptiveLimit;
+    private final EndpointStats[] endpointStats;
+    private final EndpointSelector endpointSelector;
+    private final HedgePolicy hedgePolicy;
+    private final RequestBudget hedgeBudget;
+    private final ConcurrentHashMap<MethodDescriptor, LatencyHistogram> hedgeLatencies = new ConcurrentHashMap<>();
+    private final RetryPolicy retryPolicy;
+    private final RequestBudget retryBudget;
+    private final CachePolicy cachePolicy;
+    private final ResponseCache responseCache;
+    private final Set<String> coalescedMethods;
+    private final boolean payloadFrames;
+    private final CompressionPolicy compressionPolicy;
+    // id of the compression policy's codec, 0 without one
+    private final int compressionCodec;
+    private final ConcurrentHashMap<ResponseCache.Key, Flight> flights = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MethodDescriptor, MethodFields> methodFields = new ConcurrentHashMap<>();
+    private final ChannelStats stats;
 
     private String[] endpoints;
-    private ZContext context;
+    private Reactor reactor;
+    private final boolean ownsReactor;
 
     private volatile boolean isClosed = false;
 
     public enum Errors {
-        TIMEOUT, CHANNEL_CLOSED, INVALID_RESPONSE
+        TIMEOUT, CHANNEL_CLOSED, INVALID_RESPONSE, OVERLOADED, CANCELED
     }
 
-    private class RequestMetadata {
-        final long id;
+    private static final int ST_NEW = 0;
+    private static final int ST_QUEUED = 1;
+    private static final int ST_ACTIVE = 2;
+    // between a failed attempt and its retry
+    private static final int ST_BACKOFF = 3;
+    private static final int ST_DONE = 4;
+
+    /**
+     * A method's fields of the Request, serialized once per method, naming it by service and method name, or for
+     * servers whose method table matches by its index.
+     */
+    private static final class MethodFields {
+        final byte[] names;
+        final byte[] index;
+        final int methodTable;
+
+        MethodFields(byte[] names, byte[] index, int methodTable) {
+            this.names = names;
+            this.index = index;
+            this.methodTable = methodTable;
+        }
+
+        byte[] forEndpoint(EndpointStats endpoint) {
+            return endpoint.methodTable == methodTable ? index : names;
+        }
+    }
+
+    /**
+     * One call, from callMethod until its callback runs. It is sent as one or more attempts, the first of which to
+     * be answered completes it.
+     */
+    private static class RequestMetadata {
+        private static final AtomicIntegerFieldUpdater<RequestMetadata> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(RequestMetadata.class, "state");
+        private static final AtomicReferenceFieldUpdater<RequestMetadata, Attempt> ATTEMPTS =
+                AtomicReferenceFieldUpdater.newUpdater(RequestMetadata.class, Attempt.class, "attempts");
+
         final Controller controller;
         final RpcCallback<Message> done;
         final Message responsePrototype;
-        final TimerTask timerTask;
+        final MethodDescriptor method;
+        final long startNanos = System.nanoTime();
+        // for calls made while a server handles a call, when that call's client stops waiting, otherwise 0
+        long parentDeadlineNanos = 0;
+        // when the call times out, fixed once it is submitted so that waiting for admission does not extend it,
+        // Long.MAX_VALUE without a timeout
+        long callDeadlineNanos = Long.MAX_VALUE;
+        // when the current attempts time out, the call's deadline or earlier with RetryPolicy's attempt timeout,
+        // 0 without a timeout
+        volatile long deadlineNanos = 0;
+        // serialized for calls of cached or coalesced methods, which key on it, and otherwise by each attempt
+        // straight into its frame
+        ByteString requestProto;
+        Message requestMessage;
+        // the request proto compressed, for servers that accept it, null if the policy leaves it as is
+        byte[] compressedProto;
+        MethodFields methodFields;
+        // set for calls of cached or coalesced methods
+        ResponseCache.Key cacheKey;
+        // set for calls of cached methods
+        long cacheTtlNanos;
+        // the latest attempt, linked to the ones before it
+        volatile Attempt attempts = null;
+        volatile TimeoutWheel.Timeout timeout;
+        volatile TimeoutWheel.Timeout hedgeTimeout;
+        // set once a server could not make sense of the call as it went out, so that it goes out whole and named in
+        // full from then on, see resendWhole
+        volatile boolean isWhole = false;
+        // only changed by whoever moves the call into ST_BACKOFF
+        int retries = 0;
+        long backoffNanos = 0;
+        // settles races between responses, timeouts, hedges and, for AdmissionPolicy.QUEUE, admission
+        volatile int state = ST_NEW;
 
-        RequestMetadata(long id, Controller controller, RpcCallback<Message> done, Message responsePrototype, TimerTask timerTask) {
-            this.id = id;
+        RequestMetadata(Controller controller, RpcCallback<Message> done, Message responsePrototype,
+                        MethodDescriptor method) {
             this.controller = controller;
             this.done = done;
             this.responsePrototype = responsePrototype;
-            this.timerTask = timerTask;
+            this.method = method;
+        }
+
+        boolean transition(int from, int to) {
+            return STATE.compareAndSet(this, from, to);
+        }
+
+        /**
+         * @return the state the call was completed from, or -1 if something else completed it first
+         */
+        int complete() {
+            while (true) {
+                int current = state;
+                if (current == ST_DONE) {
+                    return -1;
+                }
+                if (STATE.compareAndSet(this, current, ST_DONE)) {
+                    return current;
+                }
+            }
+        }
+
+        void link(Attempt attempt) {
+            do {
+                attempt.previous = attempts;
+            } while (!ATTEMPTS.compareAndSet(this, attempt.previous, attempt));
         }
     }
 
-    private class CancelRequestTask extends TimerTask {
-        final long id;
+    /**
+     * A caller of a coalesced call.
+     */
+    private static final class Waiter {
+        final Controller controller;
+        final RpcCallback<Message> done;
+        // Long.MAX_VALUE without a timeout
+        final long deadlineNanos;
+        volatile Flight flight;
+        volatile TimeoutWheel.Timeout timeout;
+        private final AtomicBoolean isDone = new AtomicBoolean(false);
 
-        CancelRequestTask(long id) {
-            this.id = id;
+        Waiter(Controller controller, RpcCallback<Message> done, long deadlineNanos) {
+            this.controller = controller;
+            this.done = done;
+            this.deadlineNanos = deadlineNanos;
         }
 
-        @Override
-        public void run() {
-            logger.warn("canceling request, id -> {}", id);
-            RequestMetadata request = ongoingRequests.remove(id);
-            if (request != null) {
-                cancelRequest(request, Errors.TIMEOUT);
+        boolean complete() {
+            return isDone.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Identical calls in flight together, all answered by the one call sent for them.
+     */
+    private final class Flight {
+        final ResponseCache.Key key;
+        final Message requestMessage;
+        volatile RequestMetadata request;
+        private final ArrayList<Waiter> waiters = new ArrayList<>(2);
+        private boolean isDone = false;
+
+        Flight(ResponseCache.Key key, Message requestMessage) {
+            this.key = key;
+            this.requestMessage = requestMessage;
+        }
+
+        synchronized boolean attach(Waiter waiter) {
+            if (isDone) {
+                return false;
             }
+            waiter.flight = this;
+            waiters.add(waiter);
+            return true;
+        }
+
+        /**
+         * @return true if that was the last waiter, in which case nothing attaches anymore
+         */
+        synchronized boolean detach(Waiter waiter) {
+            if (!waiters.remove(waiter) || !waiters.isEmpty() || isDone) {
+                return false;
+            }
+            isDone = true;
+            return true;
+        }
+
+        /**
+         * The flight's call completed, hands its outcome to every waiter still waiting. If it timed out, waiters
+         * whose own deadline is later are sent again rather than failed early.
+         */
+        void complete(Message response) {
+            Waiter[] remaining;
+            synchronized (this) {
+                isDone = true;
+                remaining = waiters.toArray(new Waiter[0]);
+                waiters.clear();
+            }
+            flights.remove(key, this);
+            boolean timedOut = request.controller.channelError() == Errors.TIMEOUT;
+            long now = System.nanoTime();
+            Flight next = null;
+            for (Waiter waiter : remaining) {
+                if (timedOut && !isClosed && waiter.deadlineNanos - now > 0) {
+                    if (next == null) {
+                        next = new Flight(key, requestMessage);
+                    }
+                    next.attach(waiter);
+                } else if (waiter.complete()) {
+                    if (waiter.timeout != null) {
+                        waiter.timeout.cancel();
+                    }
+                    waiter.controller.copyFrom(request.controller);
+                    waiter.done.run(response);
+                }
+            }
+            if (next != null) {
+                Flight reissued = next;
+                // may block on admission, and this runs on whichever thread completed the call
+                responseHandlerPool.execute(() -> launch(reissued, request.method, request.responsePrototype,
+                        request.cacheTtlNanos));
+            }
+        }
+
+        synchronized long latestDeadlineNanos() {
+            long latest = 0;
+            for (Waiter waiter : waiters) {
+                latest = Math.max(latest, waiter.deadlineNanos);
+            }
+            return latest;
+        }
+    }
+
+    /**
+     * One copy of a call sent to one endpoint, under its own id.
+     */
+    private static class Attempt implements PendingRequests.Entry {
+        final RequestMetadata request;
+        final Lane lane;
+        final EndpointStats endpoint;
+        final boolean isHedge;
+        Attempt previous;
+        // set before the attempt is published to its lane's table
+        long id;
+        long sentNanos;
+        int inFlightAtSend;
+        int outstandingAtSend;
+        // what is left of the call's timeout when the attempt was queued, 0 without one
+        int timeoutMillis;
+        volatile boolean reportedStuck = false;
+        // set once the call no longer needs the attempt, so that it is not sent or the server is told to drop it
+        volatile boolean isCanceled = false;
+        // io thread only
+        boolean isSent = false;
+        // whether the request proto went out in a frame of its own, set before it is sent
+        boolean isSplit = false;
+        // whether the method went out by index rather than by name, set before it is sent
+        boolean isByIndex = false;
+
+        Attempt(RequestMetadata request, Lane lane, EndpointStats endpoint, boolean isHedge) {
+            this.request = request;
+            this.lane = lane;
+            this.endpoint = endpoint;
+            this.isHedge = isHedge;
+        }
+
+        @Override
+        public long id() {
+            return id;
         }
     }
 
-    private void requestHandler() {
-        // https://github.com/zeromq/jeromq/wiki/Sharing-ZContext-between-thread
-        ZContext shadowContext = ZContext.shadow(context);
-        ZMQ.Socket socket = shadowContext.createSocket(ZMQ.DEALER);
-        for (String endpoint : endpoints) {
-            socket.connect(endpoint);
+    /**
+     * A socket per endpoint, so that each request goes to the endpoint picked for it, with a submission ring and
+     * table of pending requests, driven by one io thread. Calls are striped across lanes so that sending, receiving
+     * and parsing for one channel can use more than one core.
+     */
+    private final class Lane implements Reactor.Handler {
+        final int index;
+        final SubmissionRing<Attempt> requestQueue;
+        final PendingRequests<Attempt> ongoingRequests;
+        // attempts to tell the server about, bounded by the attempts sent
+        final ConcurrentLinkedQueue<Attempt> cancelQueue = new ConcurrentLinkedQueue<>();
+        final AtomicLong nextSequence = new AtomicLong(0);
+        Reactor.Registration registration;
+        // io thread only, indexed like endpoints
+        private ZMQ.Socket[] sockets;
+        // io thread only
+        private final BufferPool buffers = new BufferPool(1);
+
+        Lane(int index, int numConcurrentRequests) {
+            this.index = index;
+            // admission keeps at most numConcurrentRequests in flight, so neither of these fill up even if every
+            // request lands on one lane. Twice the size leaves room for hedges, and for ongoingRequests leaves slots
+            // free while a lost request, one that never times out, still holds its own.
+            this.requestQueue = new SubmissionRing<>(2 * numConcurrentRequests);
+            this.ongoingRequests = new PendingRequests<>(2 * numConcurrentRequests);
+        }
+
+        long nextId() {
+            return ((long) index << LANE_SHIFT) | (nextSequence.incrementAndGet() & SEQUENCE_MASK);
+        }
+
+        @Override
+        public ZMQ.Socket[] open(ZContext context) {
+            sockets = new ZMQ.Socket[endpoints.length];
+            for (int i = 0; i < endpoints.length; i++) {
+                sockets[i] = context.createSocket(ZMQ.DEALER);
+                sockets[i].connect(endpoints[i]);
+            }
+            return sockets;
         }
-        ArrayList<SocketRpcProtos.Request> buffer = new ArrayList<>();
-        ZMQ.PollItem[] items = new ZMQ.PollItem[] { new ZMQ.PollItem(socket, ZMQ.Poller.POLLIN) };
-        while (!isClosed) {
-            ZMQ.poll(items, 10);
-            if (items[0].isReadable()) {
-                ZMsg message = ZMsg.recvMsg(socket);
-                ZFrame content = message.getLast();
+
+        @Override
+        public void onReadable(ZMQ.Socket socket) {
+            ZMsg message;
+            for (int i = 0; i < MAX_RECEIVE_BATCH && (message = ZMsg.recvMsg(socket, ZMQ.DONTWAIT)) != null; i++) {
+                ZFrame content = message.removeLast();
+                ZFrame payload = null;
+                // the empty delimiter, the response, and for servers that split them its response proto
+                if (message.size() > 1) {
+                    payload = content;
+                    content = message.removeLast();
+                }
                 try {
-                    final SocketRpcProtos.Response response = SocketRpcProtos.Response.parseFrom(content.getData());
-                    responseHandlerPool.execute(() -> handleResponse(response));
+                    // the response proto stays in the frame until a handler thread parses it
+                    SocketRpcProtos.Response.Builder builder = SocketRpcProtos.Response.newBuilder();
+                    Envelope parsed = Envelope.parse(content.getData(),
+                            SocketRpcProtos.Response.RESPONSE_PROTO_FIELD_NUMBER, builder);
+                    Envelope envelope = payload != null ? Envelope.ofPayload(payload.getData()) : parsed;
+                    SocketRpcProtos.Response response = builder.build();
+                    if (!response.hasRequestId()
+                            && response.getErrorCode() == SocketRpcProtos.ErrorReason.INVALID_REQUEST_PROTO) {
+                        // a server that could not even read the id, e.g. one that took a request proto frame for
+                        // the Request, so it does not take payload frames whatever it said before
+                        EndpointStats endpoint = endpointOf(socket);
+                        endpoint.acceptsPayloadFrame = false;
+                        responseHandlerPool.execute(() -> handleUnparsed(endpoint));
+                        continue;
+                    }
+                    responseHandlerPool.execute(() -> handleResponse(response, envelope));
                 } catch (InvalidProtocolBufferException e) {
                     logger.warn("unable to parse proto response, content -> {}",
                             new String(Base64.getEncoder().encode(content.getData())));
                 } finally {
-                    content.destroy();
                     message.destroy();
                 }
             }
-            requestQueue.drainTo(buffer);
-            for (SocketRpcProtos.Request request : buffer) {
-                logger.debug("sending request, id -> {}, proto -> {}", request.getId(), request);
-                ZMsg message = new ZMsg();
-                message.add(new ZFrame(""));
-                message.add(new ZFrame(request.toByteArray()));
-                message.send(socket);
+        }
+
+        private EndpointStats endpointOf(ZMQ.Socket socket) {
+            int i = 0;
+            while (sockets[i] != socket) {
+                i++;
+            }
+            return endpointStats[i];
+        }
+
+        @Override
+        public boolean flush() {
+            requestQueue.drain(attempt -> {
+                if (attempt.isCanceled) {
+                    return;
+                }
+                logger.debug("sending request, id -> {}, endpoint -> {}, method -> {}",
+                        attempt.id, attempt.endpoint.getAddress(), attempt.request.method.getFullName());
+                send(attempt);
+                attempt.isSent = true;
+            }, MAX_SEND_BATCH);
+            Attempt canceled;
+            for (int i = 0; i < MAX_SEND_BATCH && (canceled = cancelQueue.poll()) != null; i++) {
+                // an attempt canceled before it was sent was skipped above, and servers that did not say they
+                // handle cancels would take one for a request of its own
+                if (canceled.isSent && canceled.endpoint.acceptsCancel) {
+                    logger.debug("canceling request, id -> {}, endpoint -> {}", canceled.id,
+                            canceled.endpoint.getAddress());
+                    byte[] cancel = SocketRpcProtos.Request.newBuilder()
+                            .setId(canceled.id)
+                            .setServiceName("")
+                            .setMethodName("")
+                            .setRequestProto(ByteString.EMPTY)
+                            .setCancel(true)
+                            .build().toByteArray();
+                    send(canceled, cancel, cancel.length);
+                    stats.cancels.increment();
+                }
+            }
+            // leftovers, whether past the batch or not yet published by their producer, are picked up without waiting
+            return !requestQueue.isEmpty() || !cancelQueue.isEmpty();
+        }
+
+        /**
+         * Serializes the attempt's Request field by field into a pooled buffer, with the request message written
+         * straight into its request_proto field rather than serialized on its own first, or for servers that accept
+         * it into a frame of its own after the Request's. Servers that accept the channel's codec get it compressed
+         * if it was.
+         */
+        private void send(Attempt attempt) {
+            RequestMetadata request = attempt.request;
+            boolean isSplit = payloadFrames && attempt.endpoint.acceptsPayloadFrame && !request.isWhole;
+            attempt.isSplit = isSplit;
+            int headersSize = 0;
+            byte[] methodFields = request.isWhole
+                    ? request.methodFields.names
+                    : request.methodFields.forEndpoint(attempt.endpoint);
+            attempt.isByIndex = methodFields != request.methodFields.names;
+            int headerSize = methodFields.length
+                    + CodedOutputStream.computeUInt64Size(SocketRpcProtos.Request.ID_FIELD_NUMBER, attempt.id);
+            byte[] compressed = attempt.endpoint.acceptsCompression ? request.compressedProto : null;
+            if (compressed != null) {
+                headerSize += CodedOutputStream.computeUInt32Size(SocketRpcProtos.Request.COMPRESSION_FIELD_NUMBER,
+                        compressionCodec);
+            }
+            if (compressionCodec != 0) {
+                headerSize += CodedOutputStream.computeUInt32Size(
+                        SocketRpcProtos.Request.ACCEPTED_COMPRESSION_FIELD_NUMBER, compressionCodec);
+            }
+            if (attempt.timeoutMillis > 0) {
+                headersSize = CodedOutputStream.computeUInt32Size(
+                        SocketRpcProtos.RequestHeaders.TIMEOUT_MILLIS_FIELD_NUMBER, attempt.timeoutMillis);
+                headerSize += CodedOutputStream.computeTagSize(SocketRpcProtos.Request.HEADERS_FIELD_NUMBER)
+                        + CodedOutputStream.computeRawVarint32Size(headersSize) + headersSize;
+            }
+            int payloadSize = compressed != null
+                    ? compressed.length
+                    : request.requestProto != null
+                        ? request.requestProto.size()
+                        : request.requestMessage.getSerializedSize();
+            int size = isSplit
+                    ? headerSize
+                    : headerSize + CodedOutputStream.computeTagSize(SocketRpcProtos.Request.REQUEST_PROTO_FIELD_NUMBER)
+                        + CodedOutputStream.computeRawVarint32Size(payloadSize) + payloadSize;
+            byte[] buffer = buffers.acquire(Math.max(size, isSplit ? payloadSize : 0));
+            CodedOutputStream output = CodedOutputStream.newInstance(buffer, 0, size);
+            try {
+                output.writeRawBytes(methodFields);
+                output.writeUInt64(SocketRpcProtos.Request.ID_FIELD_NUMBER, attempt.id);
+                if (headersSize > 0) {
+                    output.writeTag(SocketRpcProtos.Request.HEADERS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    output.writeRawVarint32(headersSize);
+                    output.writeUInt32(SocketRpcProtos.RequestHeaders.TIMEOUT_MILLIS_FIELD_NUMBER,
+                            attempt.timeoutMillis);
+                }
+                if (compressed != null) {
+                    output.writeUInt32(SocketRpcProtos.Request.COMPRESSION_FIELD_NUMBER, compressionCodec);
+                }
+                if (compressionCodec != 0) {
+                    output.writeUInt32(SocketRpcProtos.Request.ACCEPTED_COMPRESSION_FIELD_NUMBER, compressionCodec);
+                }
+                if (!isSplit) {
+                    output.writeTag(SocketRpcProtos.Request.REQUEST_PROTO_FIELD_NUMBER,
+                            WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    output.writeRawVarint32(payloadSize);
+                    writePayload(request, compressed, output);
+                }
+                output.checkNoSpaceLeft();
+                ZMQ.Socket socket = sockets[attempt.endpoint.index];
+                socket.send(EMPTY_FRAME, ZMQ.SNDMORE);
+                // copies the bytes, so that the buffer can be reused right away
+                socket.send(buffer, 0, size, isSplit ? ZMQ.SNDMORE : 0);
+                if (isSplit) {
+                    output = CodedOutputStream.newInstance(buffer, 0, payloadSize);
+                    writePayload(request, compressed, output);
+                    output.checkNoSpaceLeft();
+                    socket.send(buffer, 0, payloadSize, 0);
+                }
+            } catch (IOException e) {
+                // the sizes above are exact, and messages are immutable
+                throw new IllegalStateException("request serialized to an unexpected size, id -> " + attempt.id, e);
+            }
+            buffers.release(buffer);
+        }
+
+        private void writePayload(RequestMetadata request, byte[] compressed, CodedOutputStream output)
+                throws IOException {
+            if (compressed != null) {
+                output.writeRawBytes(compressed);
+            } else if (request.requestProto != null) {
+                output.writeRawBytes(request.requestProto);
+            } else {
+                request.requestMessage.writeTo(output);
+            }
+        }
+
+        private void send(Attempt attempt, byte[] data, int size) {
+            ZMQ.Socket socket = sockets[attempt.endpoint.index];
+            socket.send(EMPTY_FRAME, ZMQ.SNDMORE);
+            // copies the bytes, so that the buffer can be reused right away
+            socket.send(data, 0, size, 0);
+        }
+
+        @Override
+        public void onStopped() {
+            if (!isClosed) {
+                logger.warn("io thread stopped, closing channel, lane -> {}", index);
+                isClosed = true;
+                cancelAllRequests(Errors.CHANNEL_CLOSED);
             }
-            buffer.clear();
         }
-        shadowContext.destroy();
-        isClosed = true;
     }
 
     public static Channel createOrNull(String[] endpoints, int numConcurrentRequests, ExecutorService responseHandlerPool) {
@@ -128,46 +575,216 @@ public class Channel implements RpcChannel {
 
     public static Channel create(String[] endpoints, int numConcurrentRequests, ExecutorService responseHandlerPool)
             throws ZMQException {
-        Timer timer = new Timer();
-        Channel channel = new Channel(timer, endpoints, numConcurrentRequests, responseHandlerPool);
+        return create(endpoints, numConcurrentRequests, responseHandlerPool, new ChannelOptions());
+    }
+
+    public static Channel create(String[] endpoints, int numConcurrentRequests, ExecutorService responseHandlerPool,
+                                 ChannelOptions options) throws ZMQException {
+        Channel channel = new Channel(endpoints, numConcurrentRequests, responseHandlerPool, options);
         channel.start();
         return channel;
     }
 
-    Channel(Timer timer, String[] endpoints, int numConcurrentRequests, ExecutorService responseHandlerPool) {
-        this.timer = timer;
+    Channel(String[] endpoints, int numConcurrentRequests, ExecutorService responseHandlerPool, ChannelOptions options) {
+        this.timeoutWheel = options.getTimeoutWheel();
+        this.admissionPolicy = options.getAdmissionPolicy();
+        this.admission = new Admission(numConcurrentRequests, options.getMaxQueuedRequests(numConcurrentRequests));
+        this.adaptiveLimit = options.isAdaptiveLimit()
+                ? new AdaptiveLimit(Math.min(options.getMinConcurrentRequests(), numConcurrentRequests),
+                        numConcurrentRequests, options.getLatencyTolerance(), AdaptiveLimit.DEFAULT_BACKOFF_RATIO,
+                        admission::setLimit)
+                : null;
         this.endpoints = endpoints;
-        this.requestQueue = new ArrayBlockingQueue<>(numConcurrentRequests);
+        this.endpointStats = new EndpointStats[endpoints.length];
+        CircuitBreakerPolicy breakerPolicy = options.getCircuitBreakerPolicy();
+        AtomicInteger ejected = new AtomicInteger(0);
+        int maxEjected = breakerPolicy != null ? endpoints.length * breakerPolicy.getMaxEjectionPercent() / 100 : 0;
+        long now = System.nanoTime();
+        for (int i = 0; i < endpoints.length; i++) {
+            // with nothing to eject breakers would only cost the bookkeeping
+            CircuitBreaker breaker = maxEjected > 0
+                    ? new CircuitBreaker(endpoints[i], breakerPolicy, ejected, maxEjected, now)
+                    : null;
+            // the same bounds as the channel's limit, which still caps the requests to all endpoints together
+            AdaptiveLimit limit = options.isAdaptiveLimit()
+                    ? new AdaptiveLimit(Math.min(options.getMinConcurrentRequests(), numConcurrentRequests),
+                            numConcurrentRequests, options.getLatencyTolerance(), AdaptiveLimit.DEFAULT_BACKOFF_RATIO,
+                            endpointLimit -> { })
+                    : null;
+            endpointStats[i] = new EndpointStats(i, endpoints[i], breaker, limit);
+        }
+        this.endpointSelector = new EndpointSelector(endpointStats, options.getLoadBalancing());
+        // hedges go to a different endpoint, so there is nothing to hedge with a single one
+        this.hedgePolicy = endpoints.length > 1 ? options.getHedgePolicy() : null;
+        this.hedgeBudget = hedgePolicy != null
+                ? new RequestBudget(hedgePolicy.getBudgetRatio(), MAX_HEDGE_BALANCE)
+                : null;
+        this.retryPolicy = options.getRetryPolicy();
+        this.retryBudget = retryPolicy != null
+                ? new RequestBudget(retryPolicy.getBudgetRatio(), MAX_RETRY_BALANCE)
+                : null;
+        this.cachePolicy = options.getCachePolicy();
+        this.responseCache = cachePolicy != null ? new ResponseCache(cachePolicy.getMaxBytes()) : null;
+        this.coalescedMethods = options.getCoalescedMethods();
+        this.payloadFrames = options.isPayloadFrames();
+        this.compressionPolicy = options.getCompressionPolicy();
+        this.compressionCodec = compressionPolicy != null ? compressionPolicy.getCodec().getId() : 0;
+        this.stats = new ChannelStats(admission, adaptiveLimit, endpointStats, responseCache);
+        int numLanes = options.getNumLanes();
+        if (numLanes <= 0 || numLanes > MAX_LANES) {
+            throw new IllegalArgumentException("numLanes out of range: " + numLanes);
+        }
+        this.lanes = new Lane[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            lanes[i] = new Lane(i, numConcurrentRequests);
+        }
         this.responseHandlerPool = responseHandlerPool;
+        this.reactor = options.getReactor();
+        this.ownsReactor = reactor == null;
     }
 
     private void start() throws ZMQException {
         logger.info("starting client...");
-        context = new ZContext(1);
-        requestHandlerPool.execute(this::requestHandler);
+        if (ownsReactor) {
+            reactor = new Reactor(lanes.length);
+        }
+        for (Lane lane : lanes) {
+            // on a shared reactor lanes of different channels are spread over its threads in turn
+            lane.registration = ownsReactor ? reactor.register(lane, lane.index) : reactor.register(lane);
+        }
     }
 
     public void close() {
         logger.info("closing client...");
         isClosed = true;
+        admission.close();
         cancelAllRequests(Errors.CHANNEL_CLOSED);
-        context.close();
-        timer.cancel();
+        if (ownsReactor) {
+            reactor.close();
+        } else {
+            for (Lane lane : lanes) {
+                lane.registration.cancel();
+            }
+        }
+    }
+
+    public ChannelStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Drops every cached response, e.g. after the data behind a cached method changed.
+     */
+    public void invalidateCache() {
+        if (responseCache != null) {
+            responseCache.invalidateAll();
+        }
     }
 
-    private TimerTask createTimerTask(long id, Controller controller) {
-        long timeout = controller.timeoutMillis;
-        if (timeout == 0) {
+    /**
+     * Runs the task on the response handler pool once the delay has passed. The wheel thread only hands it over, so
+     * that completing calls, and the callbacks run with them, never hold up the timeouts of other channels sharing
+     * the wheel.
+     */
+    private TimeoutWheel.Timeout schedule(Runnable task, long delayNanos) {
+        return timeoutWheel.schedule(() -> {
+            try {
+                responseHandlerPool.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the pool was shut down before the channel, the call still has to complete
+                task.run();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private TimeoutWheel.Timeout scheduleTimeout(RequestMetadata request) {
+        long now = System.nanoTime();
+        long deadline = request.callDeadlineNanos;
+        if (retryPolicy != null && retryPolicy.getAttemptTimeoutMillis() > 0 && retryPolicy.appliesTo(request.method)) {
+            // leaves the rest of the call's time for retries
+            long attemptDeadline = now + TimeUnit.MILLISECONDS.toNanos(retryPolicy.getAttemptTimeoutMillis());
+            if (deadline == Long.MAX_VALUE || attemptDeadline - deadline < 0) {
+                deadline = attemptDeadline;
+            }
+        }
+        if (deadline == Long.MAX_VALUE) {
             return null;
         }
-        TimerTask task = new CancelRequestTask(id);
-        timer.schedule(task, timeout);
-        return task;
+        request.deadlineNanos = deadline;
+        long deadline_ = deadline;
+        return schedule(() -> expireRequest(request), Math.max(1, deadline_ - now));
+    }
+
+    /**
+     * @return when a call, or an attempt of it starting now, times out, the earlier of its own timeout and its
+     * parent's deadline, Long.MAX_VALUE if neither is set
+     */
+    private static long deadlineNanos(RequestMetadata request, long nowNanos) {
+        long timeoutMillis = request.controller.timeoutMillis;
+        long deadline = timeoutMillis == 0 ? Long.MAX_VALUE : nowNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (request.parentDeadlineNanos != 0 && request.parentDeadlineNanos - deadline < 0) {
+            deadline = request.parentDeadlineNanos;
+        }
+        return deadline;
     }
 
-    private void cancelTimerTask(RequestMetadata request) {
-        if (request.timerTask != null) {
-            request.timerTask.cancel();
+    private void expireRequest(RequestMetadata request) {
+        if (retryPolicy != null && retryPolicy.isRetryOnTimeout() && tryRetry(request)) {
+            long now = System.nanoTime();
+            for (Attempt attempt = request.attempts; attempt != null; attempt = attempt.previous) {
+                logger.warn("retrying request, id -> {}", attempt.id);
+                if (attempt.lane.ongoingRequests.remove(attempt.id) != null) {
+                    attempt.endpoint.outstanding.decrementAndGet();
+                    attempt.endpoint.timeouts.increment();
+                    attempt.endpoint.observe(now - attempt.sentNanos, now);
+                    attempt.endpoint.onFailure(now);
+                    attempt.endpoint.onDrop(now);
+                    abortAttempt(attempt);
+                }
+            }
+            if (adaptiveLimit != null) {
+                adaptiveLimit.onDrop(now);
+            }
+            cancelTimeouts(request);
+            scheduleRetry(request);
+            return;
+        }
+        int previous = request.complete();
+        if (previous < 0) {
+            return;
+        }
+        if (previous == ST_QUEUED) {
+            logger.warn("canceling request before it was sent");
+            cancelRequest(request, Errors.TIMEOUT);
+            return;
+        }
+        long now = System.nanoTime();
+        for (Attempt attempt = request.attempts; attempt != null; attempt = attempt.previous) {
+            logger.warn("canceling request, id -> {}", attempt.id);
+            if (attempt.lane.ongoingRequests.remove(attempt.id) != null) {
+                attempt.endpoint.outstanding.decrementAndGet();
+                attempt.endpoint.timeouts.increment();
+                attempt.endpoint.observe(now - attempt.sentNanos, now);
+                attempt.endpoint.onFailure(now);
+                attempt.endpoint.onDrop(now);
+                abortAttempt(attempt);
+            }
+        }
+        stats.timeouts.increment();
+        if (adaptiveLimit != null) {
+            adaptiveLimit.onDrop(now);
+        }
+        cancelTimeouts(request);
+        admission.release();
+        cancelRequest(request, Errors.TIMEOUT);
+    }
+
+    private void cancelTimeouts(RequestMetadata request) {
+        if (request.timeout != null) {
+            request.timeout.cancel();
+        }
+        if (request.hedgeTimeout != null) {
+            request.hedgeTimeout.cancel();
         }
     }
 
@@ -177,38 +794,538 @@ public class Channel implements RpcChannel {
                            Message requestMessage,
                            Message responsePrototype,
                            RpcCallback<Message> done) {
-        long id = nextId.incrementAndGet();
         Controller controller_ = (Controller) controller;
-        RequestMetadata request_ = new RequestMetadata(id, controller_, done, responsePrototype, createTimerTask(id, controller_));
+        RequestMetadata request_ = new RequestMetadata(controller_, done, responsePrototype, method);
         if (isClosed) {
-            cancelTimerTask(request_);
             cancelRequest(request_, Errors.CHANNEL_CLOSED);
             return;
         }
-        ongoingRequests.put(id, request_);
+        Controller parent = Controller.current();
+        if (parent != null && parent != controller_ && parent.hasDeadline()) {
+            // called from a handler, whose client will not wait for the result longer than for the handler's
+            request_.parentDeadlineNanos = parent.getDeadlineNanos();
+            if (request_.parentDeadlineNanos - System.nanoTime() <= 0) {
+                request_.state = ST_DONE;
+                stats.timeouts.increment();
+                cancelRequest(request_, Errors.TIMEOUT);
+                return;
+            }
+        }
+        if (responseCache != null && serveFromCache(request_, requestMessage)) {
+            return;
+        }
+        if (coalescedMethods.contains(method.getFullName())) {
+            request_ = coalesce(request_, requestMessage);
+            if (request_ == null) {
+                return;
+            }
+        } else {
+            RequestMetadata call = request_;
+            controller_.setOnCancel(() -> cancelCall(call, Errors.CANCELED));
+        }
+        admit(request_, requestMessage);
+    }
+
+    private void admit(RequestMetadata request_, Message requestMessage) {
+        request_.callDeadlineNanos = deadlineNanos(request_, request_.startNanos);
+        if (admission.tryAcquire()) {
+            send(request_, requestMessage);
+            return;
+        }
+        switch (admissionPolicy) {
+            case FAIL_FAST:
+                if (request_.complete() >= 0) {
+                    stats.rejected.increment();
+                    cancelRequest(request_, Errors.OVERLOADED);
+                }
+                return;
+            case QUEUE:
+                defer(request_, requestMessage);
+                return;
+            default:
+                Errors error = awaitAdmission(request_.callDeadlineNanos);
+                if (error == null) {
+                    send(request_, requestMessage);
+                } else if (request_.complete() >= 0) {
+                    if (error == Errors.TIMEOUT) {
+                        stats.timeouts.increment();
+                    }
+                    cancelRequest(request_, error);
+                }
+        }
+    }
+
+    /**
+     * Attaches the call to an identical one in flight, or starts a flight that later identical calls attach to.
+     * Each waiter keeps its own timeout and can be canceled on its own.
+     *
+     * @return the call to send for a new flight, null if the call was attached
+     */
+    private RequestMetadata coalesce(RequestMetadata request, Message requestMessage) {
+        if (request.cacheKey == null) {
+            request.requestProto = requestMessage.toByteString();
+            request.cacheKey = new ResponseCache.Key(request.method.getFullName(), request.requestProto);
+        }
+        Controller controller = request.controller;
+        long now = System.nanoTime();
+        long deadlineNanos = deadlineNanos(request, now);
+        Waiter waiter = new Waiter(controller, request.done, deadlineNanos);
+        controller.setOnCancel(() -> abandon(waiter, Errors.CANCELED));
+        Flight flight = flights.get(request.cacheKey);
+        if (flight != null && flight.attach(waiter)) {
+            stats.coalesced.increment();
+            if (deadlineNanos != Long.MAX_VALUE) {
+                waiter.timeout = schedule(() -> abandon(waiter, Errors.TIMEOUT), Math.max(1, deadlineNanos - now));
+            }
+            return null;
+        }
+        Flight leading = new Flight(request.cacheKey, requestMessage);
+        leading.attach(waiter);
+        // the first waiter's deadline is the flight's, so it needs no timer of its own
+        return flightRequest(leading, request.method, request.responsePrototype, request.cacheTtlNanos);
+    }
+
+    /**
+     * Creates the call sent for a flight, with a controller of its own that is copied to each waiter once it
+     * completes, and a timeout that covers the latest waiter.
+     */
+    private RequestMetadata flightRequest(Flight flight, MethodDescriptor method, Message responsePrototype,
+                                          long cacheTtlNanos) {
+        long deadlineNanos = flight.latestDeadlineNanos();
+        long timeoutMillis = deadlineNanos == Long.MAX_VALUE
+                ? 0
+                : Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+        RequestMetadata request = new RequestMetadata(new Controller(timeoutMillis), flight::complete,
+                responsePrototype, method);
+        request.cacheKey = flight.key;
+        request.requestProto = flight.key.request;
+        request.cacheTtlNanos = cacheTtlNanos;
+        flight.request = request;
+        flights.put(flight.key, flight);
+        return request;
+    }
+
+    /**
+     * Sends a flight again for the waiters its timed out call left behind.
+     */
+    private void launch(Flight flight, MethodDescriptor method, Message responsePrototype, long cacheTtlNanos) {
+        admit(flightRequest(flight, method, responsePrototype, cacheTtlNanos), flight.requestMessage);
+    }
+
+    /**
+     * Fails a single waiter that timed out or was canceled, and the flight's call once nobody waits for it.
+     */
+    private void abandon(Waiter waiter, Errors error) {
+        if (!waiter.complete()) {
+            return;
+        }
+        if (waiter.timeout != null) {
+            waiter.timeout.cancel();
+        }
+        if (error == Errors.TIMEOUT) {
+            stats.timeouts.increment();
+        }
+        waiter.controller.startCancel(error);
+        waiter.done.run(null);
+        Flight flight = waiter.flight;
+        if (flight != null && flight.detach(waiter) && flight.request != null) {
+            cancelCall(flight.request, Errors.CANCELED);
+        }
+    }
 
-        logger.debug("queueing request, id -> {}, proto -> {}", id, requestMessage);
+    /**
+     * Completes a call nobody waits for anymore and releases what it holds.
+     */
+    private void cancelCall(RequestMetadata request, Errors error) {
+        int previous = request.complete();
+        if (previous < 0) {
+            return;
+        }
+        cancelTimeouts(request);
+        if (previous == ST_ACTIVE) {
+            for (Attempt attempt = request.attempts; attempt != null; attempt = attempt.previous) {
+                cancelAttempt(attempt);
+            }
+            admission.release();
+        } else if (previous == ST_BACKOFF) {
+            admission.release();
+        }
+        // from ST_NEW or ST_QUEUED whoever admits the call sees it done and gives the permit back
+        cancelRequest(request, error);
+    }
 
-        SocketRpcProtos.Request requestData = SocketRpcProtos.Request.newBuilder()
-                .setId(id)
-                .setServiceName(method.getService().getFullName())
-                .setMethodName(method.getName())
-                .setRequestProto(requestMessage.toByteString())
-                .build();
+    /**
+     * Completes the call with a cached response if there is one, otherwise keys it so that its response is cached.
+     */
+    private boolean serveFromCache(RequestMetadata request, Message requestMessage) {
+        long ttlMillis = cachePolicy.getTtlMillis(request.method);
+        if (ttlMillis == 0) {
+            return false;
+        }
+        request.requestProto = requestMessage.toByteString();
+        request.cacheKey = new ResponseCache.Key(request.method.getFullName(), request.requestProto);
+        request.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        Message response = responseCache.get(request.cacheKey, System.nanoTime());
+        if (response == null) {
+            return false;
+        }
+        logger.debug("cached response, method -> {}", request.method.getFullName());
+        request.state = ST_DONE;
+        request.done.run(response);
+        return true;
+    }
 
+    /**
+     * Blocks until a permit is acquired, giving up at the call's deadline.
+     *
+     * @return null once the permit is acquired, otherwise TIMEOUT, or CHANNEL_CLOSED if the channel closed or the
+     * thread was interrupted first
+     */
+    private Errors awaitAdmission(long deadlineNanos) {
         try {
-            requestQueue.put(requestData);
+            if (admission.acquire(deadlineNanos)) {
+                return null;
+            }
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Errors.CHANNEL_CLOSED;
+        }
+        return isClosed ? Errors.CHANNEL_CLOSED : Errors.TIMEOUT;
+    }
+
+    /**
+     * Holds the call back until capacity frees up. Its timeout already runs while it waits, and is not restarted
+     * once the call is admitted.
+     */
+    private void defer(RequestMetadata request, Message requestMessage) {
+        if (!request.transition(ST_NEW, ST_QUEUED)) {
+            // canceled
+            return;
+        }
+        request.timeout = scheduleTimeout(request);
+        boolean isQueued = admission.defer(() -> {
+            if (!request.transition(ST_QUEUED, ST_ACTIVE)) {
+                // expired or canceled while waiting
+                admission.release();
+                return;
+            }
+            cancelTimeouts(request);
+            send(request, requestMessage);
+        });
+        if (!isQueued && request.transition(ST_QUEUED, ST_DONE)) {
+            stats.rejected.increment();
+            cancelTimeouts(request);
+            cancelRequest(request, Errors.OVERLOADED);
+        }
+    }
+
+    /**
+     * Sends a call that holds an admission permit.
+     */
+    private void send(RequestMetadata request_, Message requestMessage) {
+        if (isClosed) {
+            admission.release();
             cancelRequest(request_, Errors.CHANNEL_CLOSED);
+            return;
+        }
+        if (request_.state != ST_ACTIVE && !request_.transition(ST_NEW, ST_ACTIVE)) {
+            // canceled while waiting for admission
+            admission.release();
+            return;
+        }
+        request_.requestMessage = requestMessage;
+        request_.methodFields = methodFields(request_.method);
+        if (compressionPolicy != null) {
+            request_.compressedProto = compress(request_);
         }
+        logger.debug("queueing request, method -> {}, proto -> {}", request_.method.getFullName(), requestMessage);
+        if (hedgePolicy != null && hedgePolicy.appliesTo(request_.method)) {
+            hedgeBudget.deposit();
+        }
+        if (retryPolicy != null && retryPolicy.appliesTo(request_.method)) {
+            retryBudget.deposit();
+        }
+        dispatch(request_, null);
+    }
+
+    /**
+     * Sends the call's first attempt or a retry, each with a hedge of its own and timed out at the call's deadline.
+     */
+    private void dispatch(RequestMetadata request, EndpointStats exclude) {
+        if (request.callDeadlineNanos != Long.MAX_VALUE && request.callDeadlineNanos - System.nanoTime() <= 0) {
+            // e.g. admitted only once its whole timeout went by in the queue
+            if (request.complete() >= 0) {
+                stats.timeouts.increment();
+                admission.release();
+                cancelRequest(request, Errors.TIMEOUT);
+            }
+            return;
+        }
+        request.timeout = scheduleTimeout(request);
+        if (sendAttempt(request, exclude, false) == null) {
+            if (request.complete() >= 0) {
+                stats.rejected.increment();
+                cancelTimeouts(request);
+                admission.release();
+                cancelRequest(request, Errors.OVERLOADED);
+            }
+            return;
+        }
+        if (hedgePolicy != null && hedgePolicy.appliesTo(request.method)) {
+            request.hedgeTimeout = schedule(() -> hedge(request), hedgeDelayNanos(request.method));
+        }
+    }
+
+    /**
+     * Moves an active call into backoff if its method may be retried, it has attempts left, the backoff ends before
+     * the call's deadline and the budget allows. Whoever succeeds owns the retry, i.e. cleans up the failed attempts
+     * and calls scheduleRetry.
+     */
+    private boolean tryRetry(RequestMetadata request) {
+        if (request.state != ST_ACTIVE || isClosed || !retryPolicy.appliesTo(request.method)
+                || request.retries + 1 >= retryPolicy.getMaxAttempts()) {
+            return false;
+        }
+        long backoff = retryPolicy.backoffNanos(request.retries + 1);
+        if (request.callDeadlineNanos != Long.MAX_VALUE
+                && request.callDeadlineNanos - (System.nanoTime() + backoff) <= 0) {
+            // the retry could not be sent before the call times out
+            return false;
+        }
+        if (!retryBudget.tryWithdraw()) {
+            stats.retriesDenied.increment();
+            return false;
+        }
+        if (!request.transition(ST_ACTIVE, ST_BACKOFF)) {
+            retryBudget.refund();
+            return false;
+        }
+        request.backoffNanos = backoff;
+        return true;
+    }
+
+    private void scheduleRetry(RequestMetadata request) {
+        request.retries++;
+        stats.retries.increment();
+        EndpointStats failed = request.attempts.endpoint;
+        schedule(() -> retry(request, failed), request.backoffNanos);
+    }
+
+    private void retry(RequestMetadata request, EndpointStats failed) {
+        if (!request.transition(ST_BACKOFF, ST_ACTIVE)) {
+            return;
+        }
+        if (isClosed) {
+            // closing does not see calls in backoff, they have nothing outstanding
+            if (request.complete() >= 0) {
+                admission.release();
+                cancelRequest(request, Errors.CHANNEL_CLOSED);
+            }
+            return;
+        }
+        dispatch(request, failed);
+    }
+
+    /**
+     * Compresses on the calling thread rather than the io thread, and only once some endpoint has said it accepts the
+     * codec, so that a channel of old servers does not compress for nothing.
+     *
+     * @return the request proto compressed, null if the policy leaves it as is or it did not get smaller
+     */
+    private byte[] compress(RequestMetadata request) {
+        int size = request.requestProto != null
+                ? request.requestProto.size()
+                : request.requestMessage.getSerializedSize();
+        if (!compressionPolicy.appliesTo(request.method, size) || !anyAcceptsCompression()) {
+            return null;
+        }
+        byte[] data = request.requestProto != null
+                ? request.requestProto.toByteArray()
+                : request.requestMessage.toByteArray();
+        long start = System.nanoTime();
+        byte[] compressed = compressionPolicy.getCodec().compress(data, 0, data.length);
+        stats.compression.onCompress(data.length, compressed.length, System.nanoTime() - start);
+        return compressed.length < data.length ? compressed : null;
+    }
+
+    private boolean anyAcceptsCompression() {
+        for (EndpointStats endpoint : endpointStats) {
+            if (endpoint.acceptsCompression) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private MethodFields methodFields(MethodDescriptor method) {
+        MethodFields fields = methodFields.get(method);
+        if (fields == null) {
+            byte[] names = SocketRpcProtos.Request.newBuilder()
+                    .setServiceName(method.getService().getFullName())
+                    .setMethodName(method.getName())
+                    .buildPartial().toByteArray();
+            // the names are required, so they are still sent, empty
+            byte[] index = SocketRpcProtos.Request.newBuilder()
+                    .setServiceName("")
+                    .setMethodName("")
+                    .setMethodIndex(method.getIndex())
+                    .buildPartial().toByteArray();
+            fields = new MethodFields(names, index, MethodTable.fingerprint(method.getService()));
+            methodFields.put(method, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Registers and queues one copy of the call, to an endpoint other than exclude if there is one.
+     *
+     * @return the attempt, null if there was no free slot for it
+     */
+    private Attempt sendAttempt(RequestMetadata request, EndpointStats exclude, boolean isHedge) {
+        Lane lane = lanes[Math.floorMod(nextLane.getAndIncrement(), lanes.length)];
+        Attempt attempt = new Attempt(request, lane, endpointSelector.select(exclude), isHedge);
+        if (!register(attempt)) {
+            logger.warn("no free request slot, lane -> {}, capacity -> {}", lane.index,
+                    lane.ongoingRequests.capacity());
+            return null;
+        }
+        attempt.inFlightAtSend = admission.getInFlight();
+        attempt.sentNanos = System.nanoTime();
+        long deadline = request.deadlineNanos;
+        if (deadline != 0) {
+            // what is left of the timeout, so that the server drops the request once nobody waits for it
+            long remainingMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - attempt.sentNanos));
+            attempt.timeoutMillis = (int) Math.min(remainingMillis, Integer.MAX_VALUE);
+        }
+        request.link(attempt);
+        if (request.state == ST_DONE) {
+            // completed meanwhile, by whoever did so either this attempt is seen when it walks the attempts or the
+            // state is seen here
+            dropAttempt(attempt);
+            return attempt;
+        }
+        if (lane.requestQueue.offer(attempt)) {
+            lane.registration.wakeup();
+            return attempt;
+        }
+        // cannot happen while admission and the hedge budget bound what is queued to the ring's capacity
+        dropAttempt(attempt);
+        return null;
+    }
+
+    private void hedge(RequestMetadata request) {
+        Attempt primary = request.attempts;
+        if (request.state != ST_ACTIVE || primary == null || isClosed) {
+            return;
+        }
+        if (!hedgeBudget.tryWithdraw()) {
+            logger.debug("hedge budget exhausted, method -> {}", request.method.getFullName());
+            return;
+        }
+        if (sendAttempt(request, primary.endpoint, true) != null) {
+            stats.hedges.increment();
+        }
+    }
+
+    private long hedgeDelayNanos(MethodDescriptor method) {
+        if (hedgePolicy.getDelayMillis() > 0) {
+            return TimeUnit.MILLISECONDS.toNanos(hedgePolicy.getDelayMillis());
+        }
+        long percentile = hedgeLatencies(method).percentileNanos();
+        return percentile > 0 ? percentile : TimeUnit.MILLISECONDS.toNanos(hedgePolicy.getInitialDelayMillis());
+    }
+
+    private LatencyHistogram hedgeLatencies(MethodDescriptor method) {
+        return hedgeLatencies.computeIfAbsent(method, m -> new LatencyHistogram(hedgePolicy.getDelayPercentile()));
+    }
+
+    /**
+     * Assigns the attempt an id whose slot in its lane's ongoingRequests is free. Ids are skipped over while their
+     * slot is still held by a request from a lap ago.
+     */
+    private boolean register(Attempt attempt) {
+        PendingRequests<Attempt> ongoingRequests = attempt.lane.ongoingRequests;
+        for (int i = 0; i < MAX_REGISTER_ATTEMPTS; i++) {
+            attempt.id = attempt.lane.nextId();
+            if (ongoingRequests.put(attempt)) {
+                attempt.outstandingAtSend = attempt.endpoint.outstanding.incrementAndGet();
+                return true;
+            }
+            reportStuck(ongoingRequests.occupant(attempt.id));
+        }
+        return false;
+    }
+
+    /**
+     * A request that is still pending a full lap of ids later has most likely been lost, which with a timeout of 0
+     * would otherwise go unnoticed.
+     */
+    private void reportStuck(Attempt attempt) {
+        if (attempt == null || attempt.reportedStuck) {
+            return;
+        }
+        attempt.reportedStuck = true;
+        logger.warn("request outstanding for {} newer requests, id -> {}, age -> {}ms, timeout -> {}ms",
+                attempt.lane.ongoingRequests.capacity(), attempt.id,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attempt.request.startNanos),
+                attempt.request.controller.timeoutMillis);
+    }
+
+    /**
+     * Removes the attempt from its lane's table, if nothing else has.
+     */
+    private void dropAttempt(Attempt attempt) {
+        if (attempt.lane.ongoingRequests.remove(attempt.id) != null) {
+            attempt.endpoint.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Drops the attempt and tells its server to drop it too, e.g. for the losing copy of a hedged call.
+     */
+    private void cancelAttempt(Attempt attempt) {
+        if (attempt.lane.ongoingRequests.remove(attempt.id) != null) {
+            attempt.endpoint.outstanding.decrementAndGet();
+            abortAttempt(attempt);
+        }
+    }
+
+    /**
+     * Tells the server to drop an attempt already removed from its lane's table, or keeps it from being sent.
+     */
+    private void abortAttempt(Attempt attempt) {
+        if (attempt.isCanceled) {
+            return;
+        }
+        attempt.isCanceled = true;
+        attempt.lane.cancelQueue.offer(attempt);
+        attempt.lane.registration.wakeup();
+    }
+
+    private boolean hasOtherAttempt(RequestMetadata request, Attempt attempt) {
+        for (Attempt other = request.attempts; other != null; other = other.previous) {
+            if (other != attempt && other.lane.ongoingRequests.get(other.id) == other) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void cancelAllRequests(Errors channelError) {
         logger.info("canceling oustanding requests...");
-        for (RequestMetadata request : ongoingRequests.values()) {
-            cancelRequest(request, channelError);
+        // waiters first, so that requests canceled below do not admit them
+        admission.flushWaiters();
+        for (Lane lane : lanes) {
+            lane.ongoingRequests.removeAll(attempt -> {
+                attempt.endpoint.outstanding.decrementAndGet();
+                RequestMetadata request = attempt.request;
+                if (request.complete() >= 0) {
+                    cancelTimeouts(request);
+                    admission.release();
+                    cancelRequest(request, channelError);
+                }
+            });
         }
-        ongoingRequests.clear();
     }
 
     private void cancelRequest(RequestMetadata request, Errors channelError) {
@@ -216,21 +1333,157 @@ public class Channel implements RpcChannel {
         request.done.run(null);
     }
 
-    private void handleResponse(SocketRpcProtos.Response response) {
-        RequestMetadata request = ongoingRequests.remove(response.getRequestId());
-        if (request == null) {
-            logger.warn("unknown response, proto -> {}", response);
+    /**
+     * Errors that say something about the server rather than the request, and so count against its endpoint. A
+     * handler that fails a call with setFailed answered as it meant to, so RPC_FAILED is not one.
+     */
+    private static boolean isServerFailure(SocketRpcProtos.ErrorReason error) {
+        return error == SocketRpcProtos.ErrorReason.RPC_ERROR;
+    }
+
+    /**
+     * A server could not parse a request, and so could not say which one. Every call with a split request out to it
+     * is sent again whole. The rejected requests stay in their lane's table, never answered, until the call
+     * completes and cancels them.
+     */
+    private void handleUnparsed(EndpointStats endpoint) {
+        logger.warn("request rejected unparsed, sending whole, endpoint -> {}", endpoint.getAddress());
+        for (Lane lane : lanes) {
+            lane.ongoingRequests.forEach(attempt -> {
+                if (attempt.endpoint == endpoint && attempt.isSplit) {
+                    resendWhole(attempt.request, attempt, SocketRpcProtos.ErrorReason.INVALID_REQUEST_PROTO);
+                }
+            });
+        }
+    }
+
+    /**
+     * Errors of a server that did not find the request proto or the method where the request put them.
+     */
+    private static boolean isFormatError(SocketRpcProtos.ErrorReason error) {
+        return error == SocketRpcProtos.ErrorReason.INVALID_REQUEST_PROTO
+                || error == SocketRpcProtos.ErrorReason.BAD_REQUEST_PROTO
+                || error == SocketRpcProtos.ErrorReason.METHOD_NOT_FOUND;
+    }
+
+    /**
+     * Sends a call that a server rejected as it went out once more, whole and named in full, the way every server
+     * takes it.
+     *
+     * @return false if the call already went out whole, or is no longer active
+     */
+    private boolean resendWhole(RequestMetadata request, Attempt rejected, SocketRpcProtos.ErrorReason error) {
+        if (request.isWhole || request.state != ST_ACTIVE || isClosed) {
+            return false;
+        }
+        request.isWhole = true;
+        logger.warn("resending request whole, id -> {}, error -> {}", rejected.id, error);
+        return sendAttempt(request, null, rejected.isHedge) != null;
+    }
+
+    private Envelope decompress(SocketRpcProtos.Response response, Envelope envelope)
+            throws InvalidProtocolBufferException {
+        Codec codec = compressionPolicy != null ? compressionPolicy.getCodec(response.getCompression()) : null;
+        if (codec == null) {
+            // servers only compress with the codec the request named
+            throw new InvalidProtocolBufferException("response compressed with unknown codec "
+                    + response.getCompression());
+        }
+        long start = System.nanoTime();
+        Envelope decompressed = envelope.decompress(codec, compressionPolicy.getMaxDecompressedBytes());
+        stats.compression.onDecompress(System.nanoTime() - start);
+        return decompressed;
+    }
+
+    private void handleResponse(SocketRpcProtos.Response response, Envelope envelope) {
+        long id = response.getRequestId();
+        int laneIndex = (int) (id >>> LANE_SHIFT);
+        Attempt attempt = laneIndex < lanes.length ? lanes[laneIndex].ongoingRequests.remove(id) : null;
+        if (attempt == null) {
+            // e.g. the losing copy of a hedged request, or a request that timed out
+            logger.debug("response for a completed or unknown request, proto -> {}", response);
+            return;
+        }
+        long now = System.nanoTime();
+        long rtt = now - attempt.sentNanos;
+        attempt.endpoint.outstanding.decrementAndGet();
+        attempt.endpoint.responses.increment();
+        attempt.endpoint.observe(rtt, now);
+        attempt.endpoint.onResponse(rtt, attempt.outstandingAtSend, now);
+        attempt.endpoint.acceptsPayloadFrame = response.getAcceptsPayloadFrame();
+        attempt.endpoint.methodTable = response.getMethodTable();
+        attempt.endpoint.acceptsCompression = response.getAcceptsCompression();
+        attempt.endpoint.acceptsCancel = response.getAcceptsCancel();
+        if (isServerFailure(response.getErrorCode())) {
+            attempt.endpoint.onFailure(now);
+        } else {
+            attempt.endpoint.onSuccess(now);
+        }
+        RequestMetadata request = attempt.request;
+        if (hedgePolicy != null && hedgePolicy.appliesTo(request.method)) {
+            hedgeLatencies(request.method).record(rtt);
+        }
+        // e.g. a server rolled back to a version without payload frames or method indexes since it said it took them
+        boolean isSplitRejected = attempt.isSplit && isFormatError(response.getErrorCode());
+        boolean isIndexRejected = attempt.isByIndex
+                && response.getErrorCode() == SocketRpcProtos.ErrorReason.METHOD_NOT_FOUND;
+        if (isSplitRejected || isIndexRejected) {
+            if (isSplitRejected) {
+                attempt.endpoint.acceptsPayloadFrame = false;
+            }
+            if (isIndexRejected) {
+                // named in full until a response confirms the method table again
+                attempt.endpoint.methodTable = 0;
+            }
+            if (resendWhole(request, attempt, response.getErrorCode())) {
+                return;
+            }
+        }
+        // an error for a method that is not retried completes the call, even with a hedge still out
+        if (retryPolicy != null && retryPolicy.appliesTo(request.method)
+                && retryPolicy.isRetryable(response.getErrorCode())) {
+            if (hasOtherAttempt(request, attempt)) {
+                // a hedge may still succeed
+                return;
+            }
+            if (tryRetry(request)) {
+                logger.warn("retrying request, id -> {}, error -> {}", id, response.getErrorCode());
+                cancelTimeouts(request);
+                scheduleRetry(request);
+                return;
+            }
+        }
+        if (request.complete() < 0) {
             return;
         }
-        cancelTimerTask(request);
+        for (Attempt other = request.attempts; other != null; other = other.previous) {
+            if (other != attempt) {
+                cancelAttempt(other);
+            }
+        }
+        stats.responses.increment();
+        if (attempt.isHedge) {
+            stats.hedgeWins.increment();
+        }
+        if (adaptiveLimit != null) {
+            adaptiveLimit.onResponse(rtt, attempt.inFlightAtSend, now);
+        }
+        cancelTimeouts(request);
+        admission.release();
         try {
             Message responsePb = null;
-            if (response.hasResponseProto()) {
-                responsePb = request.responsePrototype.toBuilder()
-                        .mergeFrom(response.getResponseProto()).build();
+            if (response.getCompression() != 0) {
+                envelope = decompress(response, envelope);
+            }
+            if (envelope.hasPayload()) {
+                // the parser is the response type's own, shared by every call, and parses without a builder copy
+                responsePb = envelope.parsePayload(request.responsePrototype.getParserForType());
             }
             logger.debug("received response, id -> {}, proto -> {}", response.getRequestId(), responsePb);
             request.controller.readFrom(response);
+            if (request.cacheTtlNanos > 0 && responsePb != null && request.controller.isOk()) {
+                responseCache.put(request.cacheKey, responsePb, request.cacheTtlNanos, now);
+            }
             request.done.run(responsePb);
         } catch (InvalidProtocolBufferException e) {
             cancelRequest(request, Errors.INVALID_RESPONSE);
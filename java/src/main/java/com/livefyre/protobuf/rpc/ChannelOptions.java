@@ -0,0 +1,257 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Optional settings for {@link Channel#create(String[], int, java.util.concurrent.ExecutorService, ChannelOptions)}.
+ * The defaults match a channel created without options.
+ */
+public class ChannelOptions {
+
+    /**
+     * What callMethod does when numConcurrentRequests requests are already in flight.
+     */
+    public enum AdmissionPolicy {
+        // wait for a request to complete, the caller's thread is blocked meanwhile
+        BLOCK,
+        // fail the call right away with Channel.Errors.OVERLOADED
+        FAIL_FAST,
+        // return right away and send the request once a request completes, the controller's future completes as usual
+        QUEUE
+    }
+
+    /**
+     * How each request picks one of the channel's endpoints.
+     */
+    public enum LoadBalancing {
+        // in turn, regardless of how the endpoints are doing
+        ROUND_ROBIN,
+        // the endpoint with the fewest requests outstanding, ties broken by lower latency
+        LEAST_OUTSTANDING,
+        // the cheaper of two endpoints picked at random, weighing latency by requests outstanding
+        POWER_OF_TWO_CHOICES
+    }
+
+    private TimeoutWheel timeoutWheel = null;
+    private AdmissionPolicy admissionPolicy = AdmissionPolicy.BLOCK;
+    private int maxQueuedRequests = -1;
+    private boolean adaptiveLimit = false;
+    private int minConcurrentRequests = 1;
+    private double latencyTolerance = AdaptiveLimit.DEFAULT_TOLERANCE;
+    private int numLanes = 1;
+    private Reactor reactor = null;
+    private LoadBalancing loadBalancing = LoadBalancing.POWER_OF_TWO_CHOICES;
+    private HedgePolicy hedgePolicy = null;
+    private RetryPolicy retryPolicy = null;
+    private CircuitBreakerPolicy circuitBreakerPolicy = null;
+    private CachePolicy cachePolicy = null;
+    private Set<String> coalescedMethods = Collections.emptySet();
+    private boolean payloadFrames = true;
+    private CompressionPolicy compressionPolicy = null;
+
+    public TimeoutWheel getTimeoutWheel() {
+        return timeoutWheel != null ? timeoutWheel : TimeoutWheel.shared();
+    }
+
+    /**
+     * @param timeoutWheel expires requests, by default the process wide {@link TimeoutWheel#shared()}
+     */
+    public ChannelOptions setTimeoutWheel(TimeoutWheel timeoutWheel) {
+        this.timeoutWheel = timeoutWheel;
+        return this;
+    }
+
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admissionPolicy;
+    }
+
+    public ChannelOptions setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy;
+        return this;
+    }
+
+    public int getMaxQueuedRequests(int numConcurrentRequests) {
+        return maxQueuedRequests >= 0 ? maxQueuedRequests : numConcurrentRequests;
+    }
+
+    /**
+     * @param maxQueuedRequests calls held back by {@link AdmissionPolicy#QUEUE} before further calls fail with
+     *                          Channel.Errors.OVERLOADED, by default numConcurrentRequests
+     */
+    public ChannelOptions setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+        return this;
+    }
+
+    public boolean isAdaptiveLimit() {
+        return adaptiveLimit;
+    }
+
+    /**
+     * @param adaptiveLimit let the channel move its in flight limit between minConcurrentRequests and
+     *                      numConcurrentRequests based on observed round trip times, see {@link ChannelStats}, and
+     *                      give each endpoint a limit of its own the same way, see {@link EndpointStats#getLimit()}
+     */
+    public ChannelOptions setAdaptiveLimit(boolean adaptiveLimit) {
+        this.adaptiveLimit = adaptiveLimit;
+        return this;
+    }
+
+    public int getMinConcurrentRequests() {
+        return minConcurrentRequests;
+    }
+
+    public ChannelOptions setMinConcurrentRequests(int minConcurrentRequests) {
+        this.minConcurrentRequests = minConcurrentRequests;
+        return this;
+    }
+
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    /**
+     * @param latencyTolerance how many times the unloaded round trip time a response may take before the adaptive
+     *                         limit treats it as a sign of queueing and backs off, at least 1
+     */
+    public ChannelOptions setLatencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    public int getNumLanes() {
+        return numLanes;
+    }
+
+    /**
+     * @param numLanes sockets that calls are striped across. One lane is usually enough, more let a busy channel
+     *                 send and receive on more than one core. A channel with its own reactor gives each lane its
+     *                 own io thread.
+     */
+    public ChannelOptions setNumLanes(int numLanes) {
+        this.numLanes = numLanes;
+        return this;
+    }
+
+    /**
+     * @return the reactor to register with, null if the channel starts its own
+     */
+    public Reactor getReactor() {
+        return reactor;
+    }
+
+    /**
+     * @param reactor io threads shared with other channels, e.g. {@link Reactor#shared()}. By default a channel starts
+     *                a reactor of its own and closes it with the channel, a shared one is left running.
+     */
+    public ChannelOptions setReactor(Reactor reactor) {
+        this.reactor = reactor;
+        return this;
+    }
+
+    public LoadBalancing getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    /**
+     * @param loadBalancing how requests are spread over the endpoints, see {@link ChannelStats#getEndpoints()}
+     */
+    public ChannelOptions setLoadBalancing(LoadBalancing loadBalancing) {
+        this.loadBalancing = loadBalancing;
+        return this;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * @param hedgePolicy methods to hedge and how, by default none. Ignored by channels with a single endpoint.
+     */
+    public ChannelOptions setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param retryPolicy methods to retry and how, by default none
+     */
+    public ChannelOptions setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public CircuitBreakerPolicy getCircuitBreakerPolicy() {
+        return circuitBreakerPolicy;
+    }
+
+    /**
+     * @param circuitBreakerPolicy when to eject failing endpoints, by default never. Ejection state is exported
+     *                             through {@link EndpointStats#getBreakerState()}.
+     */
+    public ChannelOptions setCircuitBreakerPolicy(CircuitBreakerPolicy circuitBreakerPolicy) {
+        this.circuitBreakerPolicy = circuitBreakerPolicy;
+        return this;
+    }
+
+    public CachePolicy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    /**
+     * @param cachePolicy methods whose responses are cached and for how long, by default none
+     */
+    public ChannelOptions setCachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+        return this;
+    }
+
+    public Set<String> getCoalescedMethods() {
+        return coalescedMethods;
+    }
+
+    /**
+     * A call to one of these methods made while an identical one, same request bytes, is in flight is not sent but
+     * completes with the other call's response. Each call still times out and can be canceled on its own.
+     *
+     * @param methods full names of the methods to coalesce, e.g. "package.Service.method", by default none
+     */
+    public ChannelOptions setCoalescedMethods(String... methods) {
+        this.coalescedMethods = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(methods)));
+        return this;
+    }
+
+    public boolean isPayloadFrames() {
+        return payloadFrames;
+    }
+
+    /**
+     * @param payloadFrames whether to send request protos in a frame of their own, rather than nested in the Request,
+     *                      to servers that accept it. Servers that do say so in their responses, so the first requests
+     *                      to each go out nested. On by default.
+     */
+    public ChannelOptions setPayloadFrames(boolean payloadFrames) {
+        this.payloadFrames = payloadFrames;
+        return this;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * @param compressionPolicy which request protos are compressed, for servers that accept it, and which codec
+     *                          responses may come compressed with, by default none
+     */
+    public ChannelOptions setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+        return this;
+    }
+}
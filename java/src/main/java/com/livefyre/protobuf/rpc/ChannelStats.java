@@ -0,0 +1,191 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters and gauges of a channel, for exporting to whatever metrics system the application uses. Counters
+ * only ever increase.
+ */
+public class ChannelStats {
+
+    private final Admission admission;
+    private final AdaptiveLimit adaptiveLimit;
+    private final List<EndpointStats> endpoints;
+    private final ResponseCache responseCache;
+
+    final LongAdder responses = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder hedges = new LongAdder();
+    final LongAdder hedgeWins = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder retriesDenied = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+    final LongAdder cancels = new LongAdder();
+    final CompressionStats compression = new CompressionStats();
+
+    ChannelStats(Admission admission, AdaptiveLimit adaptiveLimit, EndpointStats[] endpoints,
+                 ResponseCache responseCache) {
+        this.admission = admission;
+        this.adaptiveLimit = adaptiveLimit;
+        this.endpoints = Collections.unmodifiableList(Arrays.asList(endpoints));
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * @return one entry per endpoint, in the order the channel was created with
+     */
+    public List<EndpointStats> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return endpoints currently ejected or being probed by the {@link CircuitBreakerPolicy}
+     */
+    public int getEjectedEndpoints() {
+        int ejected = 0;
+        for (EndpointStats endpoint : endpoints) {
+            if (endpoint.getBreakerState() != EndpointStats.BreakerState.CLOSED) {
+                ejected++;
+            }
+        }
+        return ejected;
+    }
+
+    /**
+     * @return requests that are sent or about to be sent and have not completed
+     */
+    public int getInFlight() {
+        return admission.getInFlight();
+    }
+
+    /**
+     * @return calls held back by {@link ChannelOptions.AdmissionPolicy#QUEUE} until capacity frees up
+     */
+    public int getQueued() {
+        return admission.getQueued();
+    }
+
+    /**
+     * @return requests currently allowed in flight, fixed unless the channel uses an adaptive limit
+     */
+    public int getLimit() {
+        return admission.getLimit();
+    }
+
+    public long getLimitIncreases() {
+        return adaptiveLimit != null ? adaptiveLimit.getIncreases() : 0;
+    }
+
+    public long getLimitDecreases() {
+        return adaptiveLimit != null ? adaptiveLimit.getDecreases() : 0;
+    }
+
+    /**
+     * @return round trip time the adaptive limit considers unloaded, in microseconds, 0 without an adaptive limit
+     */
+    public long getNoLoadRttMicros() {
+        return adaptiveLimit != null ? adaptiveLimit.getNoLoadRttMicros() : 0;
+    }
+
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return calls failed with Channel.Errors.OVERLOADED without being sent
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return extra copies of calls sent by the {@link HedgePolicy}
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return calls completed by their hedge rather than the original request
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return attempts sent again by the {@link RetryPolicy}
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return calls that failed rather than being retried because the retry budget was exhausted
+     */
+    public long getRetriesDenied() {
+        return retriesDenied.sum();
+    }
+
+    /**
+     * @return requests the servers were told to drop, because they timed out, lost a hedge or were canceled
+     */
+    public long getCancels() {
+        return cancels.sum();
+    }
+
+    /**
+     * @return calls attached to an identical call in flight rather than sent, see
+     * {@link ChannelOptions#setCoalescedMethods(String...)}
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return calls completed from the {@link CachePolicy}'s cache without being sent
+     */
+    public long getCacheHits() {
+        return responseCache != null ? responseCache.getHits() : 0;
+    }
+
+    /**
+     * @return calls of cached methods that had to be sent
+     */
+    public long getCacheMisses() {
+        return responseCache != null ? responseCache.getMisses() : 0;
+    }
+
+    public long getCacheEvictions() {
+        return responseCache != null ? responseCache.getEvictions() : 0;
+    }
+
+    /**
+     * @return responses not cached because their request was asked for less often than what they would replace
+     */
+    public long getCacheRejections() {
+        return responseCache != null ? responseCache.getRejections() : 0;
+    }
+
+    public long getCacheBytes() {
+        return responseCache != null ? responseCache.getBytes() : 0;
+    }
+
+    public int getCacheEntries() {
+        return responseCache != null ? responseCache.getEntries() : 0;
+    }
+
+    /**
+     * @return request protos compressed and response protos decompressed, see {@link CompressionPolicy}
+     */
+    public CompressionStats getCompression() {
+        return compression;
+    }
+}
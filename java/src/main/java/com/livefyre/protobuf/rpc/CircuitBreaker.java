@@ -0,0 +1,167 @@
+package com.livefyre.protobuf.rpc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ejects one endpoint while it fails and probes it back in, see {@link CircuitBreakerPolicy}.
+ *
+ * Outcomes only count while the breaker is closed, or for the probe while it is half open. Requests that are still
+ * outstanding when the endpoint is ejected complete as usual.
+ */
+class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+    // ejections double up to the policy's maximum, this keeps the shift in range
+    private static final int MAX_BACKOFF_SHIFT = 20;
+
+    private final String address;
+    private final CircuitBreakerPolicy policy;
+    // endpoints of the channel currently ejected, shared by the channel's breakers
+    private final AtomicInteger ejected;
+    private final int maxEjected;
+
+    private volatile EndpointStats.BreakerState state = EndpointStats.BreakerState.CLOSED;
+    private int consecutiveFailures = 0;
+    private long intervalStartNanos;
+    private int intervalRequests = 0;
+    private int intervalFailures = 0;
+    // failed probes since the endpoint was last closed, doubling each ejection
+    private int failedProbes = 0;
+    private long ejectedUntilNanos = 0;
+    private boolean probing = false;
+    private long probeStartNanos = 0;
+    private long ejections = 0;
+
+    CircuitBreaker(String address, CircuitBreakerPolicy policy, AtomicInteger ejected, int maxEjected,
+                   long nowNanos) {
+        this.address = address;
+        this.policy = policy;
+        this.ejected = ejected;
+        this.maxEjected = maxEjected;
+        this.intervalStartNanos = nowNanos;
+    }
+
+    /**
+     * Lets a request through unless the endpoint is ejected. Once an ejection is over the first request to ask is
+     * let through as the probe.
+     */
+    boolean allowRequest(long nowNanos) {
+        EndpointStats.BreakerState current = state;
+        if (current == EndpointStats.BreakerState.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == EndpointStats.BreakerState.CLOSED) {
+                return true;
+            }
+            if (state == EndpointStats.BreakerState.OPEN && nowNanos - ejectedUntilNanos >= 0) {
+                logger.info("probing ejected endpoint, address -> {}", address);
+                state = EndpointStats.BreakerState.HALF_OPEN;
+                probing = false;
+            }
+            // a probe whose outcome never came, e.g. it lost a hedge, is given up on after an ejection's length
+            if (state == EndpointStats.BreakerState.HALF_OPEN && (!probing
+                    || nowNanos - probeStartNanos > TimeUnit.MILLISECONDS.toNanos(policy.getEjectionMillis()))) {
+                probing = true;
+                probeStartNanos = nowNanos;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    synchronized void onSuccess(long nowNanos) {
+        switch (state) {
+            case CLOSED:
+                consecutiveFailures = 0;
+                count(false, nowNanos);
+                return;
+            case HALF_OPEN:
+                logger.info("endpoint recovered, address -> {}", address);
+                close(nowNanos);
+                return;
+            default:
+        }
+    }
+
+    synchronized void onFailure(long nowNanos) {
+        switch (state) {
+            case CLOSED:
+                consecutiveFailures++;
+                count(true, nowNanos);
+                if (consecutiveFailures >= policy.getConsecutiveFailures()) {
+                    trip("consecutive failures", nowNanos);
+                } else if (intervalRequests >= policy.getMinRequests()
+                        && intervalFailures >= policy.getFailureRate() * intervalRequests) {
+                    trip("failure rate", nowNanos);
+                }
+                return;
+            case HALF_OPEN:
+                failedProbes++;
+                eject(nowNanos);
+                logger.warn("probe failed, ejecting endpoint again, address -> {}, for -> {}ms", address,
+                        TimeUnit.NANOSECONDS.toMillis(ejectedUntilNanos - nowNanos));
+                return;
+            default:
+        }
+    }
+
+    private void count(boolean failed, long nowNanos) {
+        if (nowNanos - intervalStartNanos > TimeUnit.MILLISECONDS.toNanos(policy.getIntervalMillis())) {
+            intervalStartNanos = nowNanos;
+            intervalRequests = 0;
+            intervalFailures = 0;
+        }
+        intervalRequests++;
+        if (failed) {
+            intervalFailures++;
+        }
+    }
+
+    private void trip(String reason, long nowNanos) {
+        while (true) {
+            int current = ejected.get();
+            if (current >= maxEjected) {
+                logger.warn("not ejecting failing endpoint, too many ejected already, address -> {}, reason -> {}",
+                        address, reason);
+                return;
+            }
+            if (ejected.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        eject(nowNanos);
+        logger.warn("ejecting endpoint, address -> {}, reason -> {}, for -> {}ms", address, reason,
+                TimeUnit.NANOSECONDS.toMillis(ejectedUntilNanos - nowNanos));
+    }
+
+    private void eject(long nowNanos) {
+        long millis = policy.getEjectionMillis() << Math.min(failedProbes, MAX_BACKOFF_SHIFT);
+        millis = Math.min(millis, Math.max(policy.getMaxEjectionMillis(), policy.getEjectionMillis()));
+        ejectedUntilNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        probing = false;
+        ejections++;
+        state = EndpointStats.BreakerState.OPEN;
+    }
+
+    private void close(long nowNanos) {
+        ejected.decrementAndGet();
+        state = EndpointStats.BreakerState.CLOSED;
+        failedProbes = 0;
+        consecutiveFailures = 0;
+        intervalStartNanos = nowNanos;
+        intervalRequests = 0;
+        intervalFailures = 0;
+    }
+
+    EndpointStats.BreakerState getState() {
+        return state;
+    }
+
+    synchronized long getEjections() {
+        return ejections;
+    }
+}
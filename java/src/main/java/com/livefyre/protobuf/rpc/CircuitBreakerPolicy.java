@@ -0,0 +1,105 @@
+package com.livefyre.protobuf.rpc;
+
+/**
+ * When a channel ejects an endpoint, see {@link ChannelOptions#setCircuitBreakerPolicy(CircuitBreakerPolicy)}.
+ *
+ * An endpoint is ejected after consecutiveFailures timeouts or handler exceptions (RPC_ERROR) in a row, or once
+ * failureRate of the requests it completed within the current interval failed that way. Calls a handler fails with
+ * setFailed do not count, they are answers. It gets no requests while ejected. When the ejection
+ * ends a single probe request is let through, and its outcome either brings the endpoint back or ejects it again for
+ * twice as long, up to maxEjectionMillis. At most maxEjectionPercent of a channel's endpoints are ejected at a time,
+ * and if every endpoint is ejected requests are spread over them as if none were.
+ */
+public class CircuitBreakerPolicy {
+
+    public static final int DEFAULT_CONSECUTIVE_FAILURES = 5;
+    public static final double DEFAULT_FAILURE_RATE = 0.5;
+    public static final int DEFAULT_MIN_REQUESTS = 20;
+    public static final long DEFAULT_INTERVAL_MILLIS = 10000;
+    public static final long DEFAULT_EJECTION_MILLIS = 5000;
+    public static final long DEFAULT_MAX_EJECTION_MILLIS = 60000;
+    public static final int DEFAULT_MAX_EJECTION_PERCENT = 50;
+
+    private int consecutiveFailures = DEFAULT_CONSECUTIVE_FAILURES;
+    private double failureRate = DEFAULT_FAILURE_RATE;
+    private int minRequests = DEFAULT_MIN_REQUESTS;
+    private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private long ejectionMillis = DEFAULT_EJECTION_MILLIS;
+    private long maxEjectionMillis = DEFAULT_MAX_EJECTION_MILLIS;
+    private int maxEjectionPercent = DEFAULT_MAX_EJECTION_PERCENT;
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public CircuitBreakerPolicy setConsecutiveFailures(int consecutiveFailures) {
+        this.consecutiveFailures = consecutiveFailures;
+        return this;
+    }
+
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    /**
+     * @param failureRate fraction of failed requests within an interval that ejects the endpoint, above 1 to never
+     */
+    public CircuitBreakerPolicy setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    public int getMinRequests() {
+        return minRequests;
+    }
+
+    /**
+     * @param minRequests requests an endpoint completes within an interval before its failure rate counts
+     */
+    public CircuitBreakerPolicy setMinRequests(int minRequests) {
+        this.minRequests = minRequests;
+        return this;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public CircuitBreakerPolicy setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        return this;
+    }
+
+    public long getEjectionMillis() {
+        return ejectionMillis;
+    }
+
+    /**
+     * @param ejectionMillis how long an endpoint is ejected the first time, doubled for each failed probe
+     */
+    public CircuitBreakerPolicy setEjectionMillis(long ejectionMillis) {
+        this.ejectionMillis = ejectionMillis;
+        return this;
+    }
+
+    public long getMaxEjectionMillis() {
+        return maxEjectionMillis;
+    }
+
+    public CircuitBreakerPolicy setMaxEjectionMillis(long maxEjectionMillis) {
+        this.maxEjectionMillis = maxEjectionMillis;
+        return this;
+    }
+
+    public int getMaxEjectionPercent() {
+        return maxEjectionPercent;
+    }
+
+    /**
+     * @param maxEjectionPercent share of the endpoints that may be ejected at once, rounded down
+     */
+    public CircuitBreakerPolicy setMaxEjectionPercent(int maxEjectionPercent) {
+        this.maxEjectionPercent = maxEjectionPercent;
+        return this;
+    }
+}
@@ -0,0 +1,24 @@
+package com.livefyre.protobuf.rpc;
+
+import java.io.IOException;
+
+/**
+ * Compresses request and response protos, see {@link CompressionPolicy}. {@link DeflateCodec} comes built in, others
+ * plug in by implementing this, e.g. around a faster compression library. Implementations must be thread safe.
+ */
+public interface Codec {
+
+    /**
+     * @return what requests and responses name the codec by, positive and the same on clients and servers,
+     * {@link DeflateCodec#ID} for the built in one
+     */
+    int getId();
+
+    byte[] compress(byte[] data, int offset, int length);
+
+    /**
+     * @param maxLength most bytes the data may decompress to, so that a small message cannot exhaust the heap
+     * @throws IOException if the data is not something this codec compressed, or decompresses to more than maxLength
+     */
+    byte[] decompress(byte[] data, int offset, int length, int maxLength) throws IOException;
+}
@@ -0,0 +1,108 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which request and response protos are compressed and how, see
+ * {@link ChannelOptions#setCompressionPolicy(CompressionPolicy)} and
+ * {@link Server#create(String, int, com.google.protobuf.Service, CompressionPolicy)}.
+ *
+ * Protos of at least the minimum size are compressed with the policy's codec, those of every method unless the
+ * policy names some. Compression is negotiated per request: a channel with a policy names its codec on each request,
+ * a server with a policy that has a codec of that id compresses its responses with it and says that it accepts
+ * requests compressed with it too, and until then the channel sends requests as is. Peers without a policy neither
+ * send nor get compressed protos. A proto that does not get smaller is sent as is.
+ */
+public class CompressionPolicy {
+
+    public static final int DEFAULT_MIN_BYTES = 1024;
+    // protobuf's own limit on the size of a message it parses
+    public static final int DEFAULT_MAX_DECOMPRESSED_BYTES = 64 * 1024 * 1024;
+
+    private Codec codec = new DeflateCodec();
+    private final Map<Integer, Codec> codecs = new HashMap<>();
+    private Set<String> methods = Collections.emptySet();
+    private int minBytes = DEFAULT_MIN_BYTES;
+    private int maxDecompressedBytes = DEFAULT_MAX_DECOMPRESSED_BYTES;
+
+    public CompressionPolicy() {
+        codecs.put(codec.getId(), codec);
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @param codec what to compress with, also accepted when decompressing, by default a {@link DeflateCodec}
+     */
+    public CompressionPolicy setCodec(Codec codec) {
+        this.codec = codec;
+        codecs.put(codec.getId(), codec);
+        return this;
+    }
+
+    /**
+     * @param codec another codec accepted when decompressing, e.g. while peers move from one codec to another
+     */
+    public CompressionPolicy addCodec(Codec codec) {
+        codecs.put(codec.getId(), codec);
+        return this;
+    }
+
+    /**
+     * @return the codec with the id, null if the policy has none
+     */
+    public Codec getCodec(int id) {
+        return codecs.get(id);
+    }
+
+    public Set<String> getMethods() {
+        return methods;
+    }
+
+    /**
+     * @param methods full names of the methods whose protos are compressed, e.g. "package.Service.method", by
+     *                default none, meaning every method
+     */
+    public CompressionPolicy setMethods(String... methods) {
+        this.methods = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(methods)));
+        return this;
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    /**
+     * @param minBytes smallest serialized proto to compress, below which compressing rarely pays for itself
+     */
+    public CompressionPolicy setMinBytes(int minBytes) {
+        this.minBytes = minBytes;
+        return this;
+    }
+
+    public int getMaxDecompressedBytes() {
+        return maxDecompressedBytes;
+    }
+
+    /**
+     * @param maxDecompressedBytes most bytes a received proto may decompress to, past which the call fails rather
+     *                             than a small message from a peer filling the heap
+     */
+    public CompressionPolicy setMaxDecompressedBytes(int maxDecompressedBytes) {
+        this.maxDecompressedBytes = maxDecompressedBytes;
+        return this;
+    }
+
+    public boolean appliesTo(MethodDescriptor method, int size) {
+        return size >= minBytes && (methods.isEmpty() || methods.contains(method.getFullName()));
+    }
+}
@@ -0,0 +1,64 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the protos a channel or server compressed and decompressed, see {@link CompressionPolicy}, exported
+ * through {@link ChannelStats#getCompression()} and {@link Server#getCompressionStats()}.
+ */
+public class CompressionStats {
+
+    private final LongAdder compressions = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressions = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    void onCompress(int uncompressedSize, int compressedSize, long nanos) {
+        compressions.increment();
+        uncompressedBytes.add(uncompressedSize);
+        compressedBytes.add(compressedSize);
+        compressNanos.add(nanos);
+    }
+
+    void onDecompress(long nanos) {
+        decompressions.increment();
+        decompressNanos.add(nanos);
+    }
+
+    /**
+     * @return protos compressed, including ones then sent as is because they did not get smaller
+     */
+    public long getCompressions() {
+        return compressions.sum();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /**
+     * @return compressed bytes per uncompressed byte over every proto compressed, 1 before the first
+     */
+    public double getRatio() {
+        long uncompressed = uncompressedBytes.sum();
+        return uncompressed > 0 ? (double) compressedBytes.sum() / uncompressed : 1;
+    }
+
+    public long getCompressMicros() {
+        return compressNanos.sum() / 1000;
+    }
+
+    public long getDecompressions() {
+        return decompressions.sum();
+    }
+
+    public long getDecompressMicros() {
+        return decompressNanos.sum() / 1000;
+    }
+}
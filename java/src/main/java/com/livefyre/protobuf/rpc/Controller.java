@@ -7,13 +7,26 @@ import com.google.protobuf.RpcController;
 import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
 import com.googlecode.protobuf.socketrpc.SocketRpcProtos.Response;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Controller implements RpcController {
+    // the server controller of the call being handled on this thread
+    private static final ThreadLocal<Controller> current = new ThreadLocal<>();
+
     final long timeoutMillis;
+    // on the server, when the client stops waiting, 0 if it waits indefinitely
+    private long deadlineNanos = 0;
     private volatile ControllerState state =
             new ControllerState(false, false, null, null, null);
     private final CompletableFuture<Message> future = new CompletableFuture<>();
+    // what the channel does when the caller gives up on the call
+    private volatile Runnable onCancel = null;
+    // on the server, set once the client gave up on the call
+    private volatile boolean isCanceledByClient = false;
+    private List<RpcCallback<Object>> cancelListeners = null;
 
     private class ControllerState {
         final boolean hasFailed;
@@ -39,12 +52,70 @@ public class Controller implements RpcController {
         this.timeoutMillis = timeoutMillis;
     }
 
+    /**
+     * @return the controller of the call a server is handling on this thread, null outside of handlers. Calls made
+     * from a handler inherit what is left of its deadline through it.
+     */
+    public static Controller current() {
+        return current.get();
+    }
+
+    /**
+     * Makes the controller current for the handler the server is about to run on this thread.
+     *
+     * @return the controller current before, to be restored after
+     */
+    Controller enter() {
+        Controller previous = current.get();
+        current.set(this);
+        return previous;
+    }
+
+    static void exit(Controller previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+    void setDeadlineNanos(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    public boolean hasDeadline() {
+        return deadlineNanos != 0;
+    }
+
+    /**
+     * On the server, how much longer the client waits for the response, Long.MAX_VALUE if it has no timeout and at
+     * most 0 once it gave up.
+     */
+    public long getRemainingMillis() {
+        if (deadlineNanos == 0) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    }
+
     public void writeTo(Response.Builder response) {
         response.setHasFailed(state.hasFailed);
         response.setCanceled(state.isCanceled);
         response.setErrorMessage(state.errorMessage);
     }
 
+    void copyFrom(Controller other) {
+        state = other.state;
+    }
+
+    void setOnCancel(Runnable onCancel) {
+        this.onCancel = onCancel;
+    }
+
     public void readFrom(Response response) {
         state = new ControllerState(response.getHasFailed() || response.getErrorCode().getNumber() != 0,
                 response.getCanceled(), response.getErrorCode(), response.getErrorMessage(), null);
@@ -64,13 +135,52 @@ public class Controller implements RpcController {
     @Override
     public boolean failed() { return state.hasFailed; }
 
+    /**
+     * On the server, also true once the client's timeout passed, though only an actual cancel runs the listeners.
+     */
     @Override
     public boolean isCanceled() {
-        return state.isCanceled;
+        return isCanceledByClient || state.isCanceled
+                || (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0);
     }
 
+    /**
+     * On the server, runs the listener once the client cancels the call, right away if it already has. Handlers of
+     * long calls use it, or poll isCanceled, to stop work nobody will read.
+     */
     @Override
-    public void notifyOnCancel(RpcCallback<Object> listener) {}
+    public void notifyOnCancel(RpcCallback<Object> listener) {
+        synchronized (this) {
+            if (!isCanceledByClient) {
+                if (cancelListeners == null) {
+                    cancelListeners = new ArrayList<>(1);
+                }
+                cancelListeners.add(listener);
+                return;
+            }
+        }
+        listener.run(null);
+    }
+
+    /**
+     * On the server, the client canceled the call or it timed out there.
+     */
+    void cancelByClient() {
+        List<RpcCallback<Object>> listeners;
+        synchronized (this) {
+            if (isCanceledByClient) {
+                return;
+            }
+            isCanceledByClient = true;
+            listeners = cancelListeners;
+            cancelListeners = null;
+        }
+        if (listeners != null) {
+            for (RpcCallback<Object> listener : listeners) {
+                listener.run(null);
+            }
+        }
+    }
 
     @Override
     public void reset() {
@@ -82,8 +192,17 @@ public class Controller implements RpcController {
         state = new ControllerState(true, false, null, message, null);
     }
 
+    /**
+     * Gives up on the call, which then completes as canceled unless it already completed. The server is told to drop
+     * the request, or if it is already running to cancel the handler's controller.
+     */
     @Override
-    public void startCancel() {}
+    public void startCancel() {
+        Runnable onCancel = this.onCancel;
+        if (onCancel != null) {
+            onCancel.run();
+        }
+    }
 
     public void startCancel(Channel.Errors channelError) {
         state = new ControllerState(true, true, null, null, channelError);
@@ -0,0 +1,90 @@
+package com.livefyre.protobuf.rpc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The built in {@link Codec}, zlib as in java.util.zip, which peers in other languages read with their own zlib.
+ *
+ * Each thread keeps a Deflater and an Inflater, since creating them allocates native memory that is only freed once
+ * they are garbage collected.
+ */
+public class DeflateCodec implements Codec {
+
+    public static final int ID = 1;
+
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Compresses at the fastest level, which gets most of the ratio on repetitive protos.
+     */
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level from 1, fastest, to 9, smallest, see {@link Deflater}
+     */
+    public DeflateCodec(int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        byte[] output = new byte[Math.max(64, length / 2)];
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            size += deflater.deflate(output, size, output.length - size);
+        }
+        return size == output.length ? output : Arrays.copyOf(output, size);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length, int maxLength) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        // one byte past the limit, so that data of exactly maxLength bytes can still reach its trailer
+        long limit = Math.min((long) maxLength + 1, Integer.MAX_VALUE - 8);
+        byte[] output = new byte[(int) Math.min(limit, Math.max(64, length * 4L))];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (size >= limit) {
+                        throw new IOException("deflate data decompresses to more than " + maxLength + " bytes");
+                    }
+                    output = Arrays.copyOf(output, (int) Math.min(limit, output.length * 2L));
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && !inflater.finished()
+                        && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated deflate data");
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("invalid deflate data", e);
+        }
+        if (size > maxLength) {
+            throw new IOException("deflate data decompresses to more than " + maxLength + " bytes");
+        }
+        return size == output.length ? output : Arrays.copyOf(output, size);
+    }
+}
@@ -0,0 +1,108 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the endpoint each request is sent to, see {@link ChannelOptions.LoadBalancing}.
+ */
+class EndpointSelector {
+
+    private final EndpointStats[] endpoints;
+    private final ChannelOptions.LoadBalancing policy;
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    EndpointSelector(EndpointStats[] endpoints, ChannelOptions.LoadBalancing policy) {
+        if (endpoints.length == 0) {
+            throw new IllegalArgumentException("no endpoints");
+        }
+        this.endpoints = endpoints;
+        this.policy = policy;
+    }
+
+    EndpointStats select() {
+        return select(null);
+    }
+
+    /**
+     * @param exclude an endpoint to avoid, e.g. the one a hedged request already went to, unless it is the only one
+     */
+    EndpointStats select(EndpointStats exclude) {
+        int candidates = exclude == null ? endpoints.length : endpoints.length - 1;
+        if (candidates <= 0) {
+            return endpoints[0];
+        }
+        long now = System.nanoTime();
+        EndpointStats chosen = choose(candidates, exclude, now);
+        if (chosen.allowRequest(now)) {
+            return chosen;
+        }
+        // ejected or at its limit, fall back to the next endpoint that takes requests
+        for (int i = 1; i < endpoints.length; i++) {
+            EndpointStats endpoint = endpoints[(chosen.index + i) % endpoints.length];
+            if (endpoint != exclude && endpoint.allowRequest(now)) {
+                return endpoint;
+            }
+        }
+        // every endpoint is ejected or full, spread the requests as if none were rather than fail them, the channel's
+        // own limit still holds
+        return chosen;
+    }
+
+    private EndpointStats choose(int candidates, EndpointStats exclude, long nowNanos) {
+        if (candidates == 1) {
+            return candidate(0, exclude);
+        }
+        switch (policy) {
+            case ROUND_ROBIN:
+                return candidate(Math.floorMod(next.getAndIncrement(), candidates), exclude);
+            case LEAST_OUTSTANDING:
+                return leastOutstanding(candidates, exclude, nowNanos);
+            default:
+                return powerOfTwoChoices(candidates, exclude, nowNanos);
+        }
+    }
+
+    /**
+     * @return the i-th endpoint, counting past exclude
+     */
+    private EndpointStats candidate(int i, EndpointStats exclude) {
+        return exclude != null && i >= exclude.index ? endpoints[i + 1] : endpoints[i];
+    }
+
+    /**
+     * Cost is the expected wait behind the requests already outstanding, so a slow endpoint is only picked while a
+     * fast one is busier by more than the difference in latency.
+     */
+    static double cost(EndpointStats endpoint, long nowNanos) {
+        // +1 so that endpoints without samples yet still compare by load
+        return (endpoint.latencyNanos(nowNanos) + 1) * (endpoint.outstanding.get() + 1);
+    }
+
+    private EndpointStats powerOfTwoChoices(int candidates, EndpointStats exclude, long nowNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates);
+        int second = random.nextInt(candidates - 1);
+        if (second >= first) {
+            second++;
+        }
+        EndpointStats a = candidate(first, exclude);
+        EndpointStats b = candidate(second, exclude);
+        return cost(a, nowNanos) <= cost(b, nowNanos) ? a : b;
+    }
+
+    private EndpointStats leastOutstanding(int candidates, EndpointStats exclude, long nowNanos) {
+        // start at a rotating offset so that ties do not all go to the first endpoint
+        int offset = Math.floorMod(next.getAndIncrement(), candidates);
+        EndpointStats best = null;
+        for (int i = 0; i < candidates; i++) {
+            EndpointStats endpoint = candidate((offset + i) % candidates, exclude);
+            if (best == null || endpoint.outstanding.get() < best.outstanding.get()
+                    || (endpoint.outstanding.get() == best.outstanding.get()
+                        && endpoint.latencyNanos(nowNanos) < best.latencyNanos(nowNanos))) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,217 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a channel knows about one of its endpoints, used to route requests and exported through
+ * {@link ChannelStats#getEndpoints()}.
+ *
+ * Latency is a moving average of round trip times that decays with time rather than per sample, and jumps straight
+ * to any slower sample so that a server that stalls is avoided right away rather than after the average catches up
+ * (peak EWMA). A timeout counts as a sample as slow as the timeout.
+ *
+ * With {@link ChannelOptions#setAdaptiveLimit(boolean)} each endpoint also gets an {@link AdaptiveLimit} of its own,
+ * so that an endpoint that slows down is sent fewer requests at a time while the others keep theirs.
+ */
+public class EndpointStats {
+
+    /**
+     * Whether the channel's {@link CircuitBreakerPolicy} lets requests through to the endpoint.
+     */
+    public enum BreakerState {
+        // requests flow as usual
+        CLOSED,
+        // ejected, requests go to the other endpoints
+        OPEN,
+        // the ejection is over and a probe request decides whether the endpoint is back
+        HALF_OPEN
+    }
+
+    private static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    final int index;
+    private final String address;
+    // null when the channel does not break circuits
+    private final CircuitBreaker breaker;
+    // null when the channel's limit is fixed
+    private final AdaptiveLimit limit;
+    final AtomicInteger outstanding = new AtomicInteger(0);
+    final LongAdder responses = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+
+    private volatile double latencyNanos = 0;
+    private volatile long lastSampleNanos = 0;
+    // as the endpoint's latest response said, see ChannelOptions.setPayloadFrames
+    volatile boolean acceptsPayloadFrame = false;
+    // as the endpoint's latest response said, 0 for servers that take method names only, see MethodTable
+    volatile int methodTable = 0;
+    // as the endpoint's latest response said, see ChannelOptions.setCompressionPolicy
+    volatile boolean acceptsCompression = false;
+    // as the endpoint's latest response said, requests to servers that do not handle cancels are left to run
+    volatile boolean acceptsCancel = false;
+
+    EndpointStats(int index, String address) {
+        this(index, address, null, null);
+    }
+
+    EndpointStats(int index, String address, CircuitBreaker breaker) {
+        this(index, address, breaker, null);
+    }
+
+    EndpointStats(int index, String address, CircuitBreaker breaker, AdaptiveLimit limit) {
+        this.index = index;
+        this.address = address;
+        this.breaker = breaker;
+        this.limit = limit;
+    }
+
+    /**
+     * @return false while the endpoint is ejected or has as many requests outstanding as its limit allows
+     */
+    boolean allowRequest(long nowNanos) {
+        // the limit first, so that a full endpoint does not use up a half open breaker's probe
+        if (limit != null && outstanding.get() >= limit.getLimit()) {
+            return false;
+        }
+        return breaker == null || breaker.allowRequest(nowNanos);
+    }
+
+    /**
+     * @param outstandingAtSend requests outstanding to the endpoint when the answered one was sent, including it
+     */
+    void onResponse(long rttNanos, int outstandingAtSend, long nowNanos) {
+        if (limit != null) {
+            limit.onResponse(rttNanos, outstandingAtSend, nowNanos);
+        }
+    }
+
+    /**
+     * A request to the endpoint timed out.
+     */
+    void onDrop(long nowNanos) {
+        if (limit != null) {
+            limit.onDrop(nowNanos);
+        }
+    }
+
+    void onSuccess(long nowNanos) {
+        if (breaker != null) {
+            breaker.onSuccess(nowNanos);
+        }
+    }
+
+    /**
+     * A request that timed out or that the server failed.
+     */
+    void onFailure(long nowNanos) {
+        if (breaker != null) {
+            breaker.onFailure(nowNanos);
+        }
+    }
+
+    synchronized void observe(long rttNanos, long nowNanos) {
+        double latency = latencyNanos;
+        if (latency == 0 || rttNanos > latency) {
+            latencyNanos = rttNanos;
+        } else {
+            double weight = Math.exp(-(double) Math.max(0, nowNanos - lastSampleNanos) / DECAY_NANOS);
+            latencyNanos = latency * weight + rttNanos * (1 - weight);
+        }
+        lastSampleNanos = nowNanos;
+    }
+
+    /**
+     * Decays towards 0 while the endpoint gets no responses, so that a slow sample does not keep an endpoint that
+     * gets no more requests, and so no more samples, out of rotation for good.
+     */
+    double latencyNanos(long nowNanos) {
+        double latency = latencyNanos;
+        long idleNanos = nowNanos - lastSampleNanos;
+        return idleNanos <= 0 ? latency : latency * Math.exp(-(double) idleNanos / DECAY_NANOS);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return requests sent to the endpoint, or about to be, that have not completed
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the moving average round trip time as of the last response, 0 before the first one
+     */
+    public long getLatencyMicros() {
+        return (long) (latencyNanos / 1000);
+    }
+
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return how many requests may be outstanding to the endpoint at a time, 0 unless the channel's limit is adaptive
+     */
+    public int getLimit() {
+        return limit != null ? limit.getLimit() : 0;
+    }
+
+    /**
+     * @return times the endpoint's adaptive limit was cut for slow responses or timeouts
+     */
+    public long getLimitDecreases() {
+        return limit != null ? limit.getDecreases() : 0;
+    }
+
+    /**
+     * @return CLOSED unless the endpoint is ejected or being probed, always CLOSED without a circuit breaker
+     */
+    public BreakerState getBreakerState() {
+        return breaker != null ? breaker.getState() : BreakerState.CLOSED;
+    }
+
+    /**
+     * @return times the endpoint was ejected, including again after a failed probe
+     */
+    public long getEjections() {
+        return breaker != null ? breaker.getEjections() : 0;
+    }
+
+    /**
+     * @return whether requests to the endpoint go out with their request proto in a frame of its own
+     */
+    public boolean isAcceptsPayloadFrame() {
+        return acceptsPayloadFrame;
+    }
+
+    /**
+     * @return the fingerprint of the service the endpoint serves, requests for methods of a service with the same
+     * fingerprint name their method by index, 0 before the first response or for servers that take names only
+     */
+    public int getMethodTable() {
+        return methodTable;
+    }
+
+    /**
+     * @return whether requests to the endpoint go out compressed with the channel's codec
+     */
+    public boolean isAcceptsCompression() {
+        return acceptsCompression;
+    }
+
+    /**
+     * @return whether the endpoint is told to drop requests the channel gave up on
+     */
+    public boolean isAcceptsCancel() {
+        return acceptsCancel;
+    }
+}
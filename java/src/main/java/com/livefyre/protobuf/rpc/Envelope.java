@@ -0,0 +1,124 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+
+/**
+ * A received frame split into its envelope, i.e. a Request or Response, and the payload it carries.
+ *
+ * Parsing the envelope as a whole copies the payload out of the frame into a ByteString, which is then parsed again.
+ * Instead the payload field is located in the frame, the envelope is parsed from the bytes around it, and the payload
+ * is later parsed straight from the frame's array. For large payloads that saves a full copy per message.
+ */
+final class Envelope {
+
+    private final byte[] data;
+    private final int payloadOffset;
+    private final int payloadLength;
+    private final boolean isPayloadFrame;
+
+    private Envelope(byte[] data, int payloadOffset, int payloadLength, boolean isPayloadFrame) {
+        this.data = data;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+        this.isPayloadFrame = isPayloadFrame;
+    }
+
+    /**
+     * Merges every field of the frame except the payload into builder, which is left to the caller to build.
+     *
+     * @param payloadField number of the envelope's bytes field holding the payload
+     */
+    static Envelope parse(byte[] data, int payloadField, Message.Builder builder) throws InvalidProtocolBufferException {
+        CodedInputStream input = CodedInputStream.newInstance(data);
+        // the low three bits of a tag are its wire type
+        int payloadTag = (payloadField << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+        int fieldStart = -1;
+        int fieldEnd = -1;
+        int payloadOffset = -1;
+        int payloadLength = 0;
+        try {
+            while (true) {
+                int start = input.getTotalBytesRead();
+                int tag = input.readTag();
+                if (tag == 0) {
+                    break;
+                }
+                if (tag == payloadTag) {
+                    int length = input.readRawVarint32();
+                    int offset = input.getTotalBytesRead();
+                    input.skipRawBytes(length);
+                    if (fieldStart >= 0) {
+                        // repeated, the last one wins as it would when parsing, and the earlier one is merged as is
+                        builder.mergeFrom(data, fieldStart, fieldEnd - fieldStart);
+                    }
+                    fieldStart = start;
+                    fieldEnd = input.getTotalBytesRead();
+                    payloadOffset = offset;
+                    payloadLength = length;
+                } else if (!input.skipField(tag)) {
+                    break;
+                }
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            // only thrown by streams, not when reading from an array
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+        if (fieldStart < 0) {
+            builder.mergeFrom(data);
+        } else {
+            builder.mergeFrom(data, 0, fieldStart);
+            builder.mergeFrom(data, fieldEnd, data.length - fieldEnd);
+        }
+        return new Envelope(data, payloadOffset, payloadLength, false);
+    }
+
+    /**
+     * For a payload sent in a frame of its own, after its envelope's.
+     */
+    static Envelope ofPayload(byte[] data) {
+        return new Envelope(data, 0, data.length, true);
+    }
+
+    boolean hasPayload() {
+        return payloadOffset >= 0;
+    }
+
+    /**
+     * @return the payload decompressed, in an envelope of its own
+     */
+    Envelope decompress(Codec codec, int maxLength) throws InvalidProtocolBufferException {
+        try {
+            byte[] payload = codec.decompress(data, payloadOffset, payloadLength, maxLength);
+            return new Envelope(payload, 0, payload.length, isPayloadFrame);
+        } catch (IOException e) {
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return whether the payload came in a frame of its own, so that a reply to it may too
+     */
+    boolean isPayloadFrame() {
+        return isPayloadFrame;
+    }
+
+    <M> M parsePayload(Parser<M> parser) throws InvalidProtocolBufferException {
+        return parser.parseFrom(data, payloadOffset, payloadLength);
+    }
+
+    /**
+     * @return a copy of the payload, e.g. for logging one that did not parse
+     */
+    ByteString copyPayload() {
+        return hasPayload() ? ByteString.copyFrom(data, payloadOffset, payloadLength) : ByteString.EMPTY;
+    }
+}
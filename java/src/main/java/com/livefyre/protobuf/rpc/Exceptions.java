@@ -30,6 +30,18 @@ public class Exceptions {
         }
     }
 
+    public static class OverloadedException extends ProtoRpcException {
+        public OverloadedException(String message) {
+            super(message);
+        }
+    }
+
+    public static class CanceledException extends ProtoRpcException {
+        public CanceledException(String message) {
+            super(message);
+        }
+    }
+
     // server exceptions
     public static class InvalidRequestProtoException extends ProtoRpcException {
         public InvalidRequestProtoException(String message) { super(message); }
@@ -83,6 +95,12 @@ public class Exceptions {
             if (controller.channelError() == Channel.Errors.INVALID_RESPONSE) {
                 return new BadResponseProtoError(controller.errorText());
             }
+            if (controller.channelError() == Channel.Errors.OVERLOADED) {
+                return new OverloadedException(controller.errorText());
+            }
+            if (controller.channelError() == Channel.Errors.CANCELED) {
+                return new CanceledException(controller.errorText());
+            }
             return new RpcError("Unknown Error");
         }
         // server errors
@@ -99,6 +117,8 @@ public class Exceptions {
                 return new ServiceNotFoundError(controller.errorText());
             case METHOD_NOT_FOUND:
                 return new MethodNotFoundError(controller.errorText());
+            case OVERLOADED:
+                return new OverloadedException(controller.errorText());
             default:
                 return new RpcError(controller.errorText());
         }
@@ -115,6 +135,12 @@ public class Exceptions {
         if (t instanceof BadResponseProtoError) {
             return (BadResponseProtoError) t;
         }
+        if (t instanceof OverloadedException) {
+            return (OverloadedException) t;
+        }
+        if (t instanceof CanceledException) {
+            return (CanceledException) t;
+        }
         if (t instanceof  InvalidRequestProtoException) {
             return (InvalidRequestProtoException) t;
         }
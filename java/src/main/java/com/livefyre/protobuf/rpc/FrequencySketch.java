@@ -0,0 +1,70 @@
+package com.livefyre.protobuf.rpc;
+
+/**
+ * Approximate, aging count of how often keys were seen, for {@link ResponseCache} admission.
+ *
+ * A count-min sketch of 4 bit counters, 16 to a long, with 4 counters per key. Counters saturate at 15 and are all
+ * halved once 10 times as many keys as the table has counters per row were counted, so that keys popular a while ago
+ * fade. Not thread safe.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int sampleSize;
+    private int size = 0;
+
+    /**
+     * @param expectedKeys about how many distinct keys are tracked at a time
+     */
+    FrequencySketch(int expectedKeys) {
+        int length = Integer.highestOneBit(Math.max(16, Math.min(expectedKeys, 1 << 24)) - 1) << 1;
+        this.table = new long[length];
+        this.sampleSize = 10 * length;
+    }
+
+    int frequency(int hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int counter = counter(hash, i);
+            frequency = Math.min(frequency, (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xf));
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int counter = counter(hash, i);
+            int index = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            if (((table[index] >>> shift) & 0xf) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    /**
+     * @return the i-th counter of the key, an index into the table's 16 * length counters
+     */
+    private int counter(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h ^= h >>> 32;
+        return (int) h & ((table.length << 4) - 1);
+    }
+}
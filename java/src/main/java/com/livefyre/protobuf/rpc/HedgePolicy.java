@@ -0,0 +1,90 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Which calls a channel may hedge and when, see {@link ChannelOptions#setHedgePolicy(HedgePolicy)}.
+ *
+ * A hedged call that has not been answered after the hedge delay is sent again to a different endpoint, and the
+ * first response wins. Only hedge methods that are safe to run twice. By default the delay is the method's observed
+ * 95th percentile latency, and hedges are capped at 5% of the hedged methods' calls.
+ *
+ * The delay is rounded up to the tick of the channel's {@link TimeoutWheel}.
+ */
+public class HedgePolicy {
+
+    public static final double DEFAULT_DELAY_PERCENTILE = 0.95;
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 50;
+    public static final double DEFAULT_BUDGET_RATIO = 0.05;
+
+    private final Set<String> methods;
+    private long delayMillis = 0;
+    private double delayPercentile = DEFAULT_DELAY_PERCENTILE;
+    private long initialDelayMillis = DEFAULT_INITIAL_DELAY_MILLIS;
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+
+    /**
+     * @param methods full names of the methods to hedge, e.g. "package.Service.method"
+     */
+    public HedgePolicy(String... methods) {
+        this.methods = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(methods)));
+    }
+
+    public boolean appliesTo(MethodDescriptor method) {
+        return methods.contains(method.getFullName());
+    }
+
+    public Set<String> getMethods() {
+        return methods;
+    }
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * @param delayMillis a fixed hedge delay, 0 to use the observed latency percentile
+     */
+    public HedgePolicy setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+        return this;
+    }
+
+    public double getDelayPercentile() {
+        return delayPercentile;
+    }
+
+    public HedgePolicy setDelayPercentile(double delayPercentile) {
+        this.delayPercentile = delayPercentile;
+        return this;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    /**
+     * @param initialDelayMillis hedge delay until a method has enough samples for its percentile
+     */
+    public HedgePolicy setInitialDelayMillis(long initialDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        return this;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * @param budgetRatio hedges allowed per hedgeable call, between 0 and 1
+     */
+    public HedgePolicy setBudgetRatio(double budgetRatio) {
+        this.budgetRatio = budgetRatio;
+        return this;
+    }
+}
@@ -0,0 +1,92 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks one percentile of recent latencies, e.g. to decide when a request is late enough to hedge.
+ *
+ * Samples go into log scale buckets with four buckets per power of two, i.e. within 25% of the true value, from a
+ * microsecond up to days. Every DECAY_INTERVAL samples all counts are halved, so the percentile follows the recent
+ * past. It is recomputed every REFRESH_INTERVAL samples rather than on every read.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKETS = 4 * 40;
+    private static final int MIN_SAMPLES = 100;
+    private static final int DECAY_INTERVAL = 1000;
+    private static final int REFRESH_INTERVAL = 64;
+
+    private final double percentile;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong samples = new AtomicLong(0);
+    private volatile long percentileNanos = -1;
+
+    LatencyHistogram(double percentile) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1: " + percentile);
+        }
+        this.percentile = percentile;
+    }
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+        long count = samples.incrementAndGet();
+        if (count % DECAY_INTERVAL == 0) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long current;
+                do {
+                    current = counts.get(i);
+                } while (!counts.compareAndSet(i, current, current / 2));
+            }
+        }
+        if (count >= MIN_SAMPLES && count % REFRESH_INTERVAL == 0) {
+            percentileNanos = TimeUnit.MICROSECONDS.toNanos(computePercentileMicros());
+        }
+    }
+
+    /**
+     * @return the percentile in nanoseconds, rounded up to its bucket's bound, or -1 before enough samples
+     */
+    long percentileNanos() {
+        return percentileNanos;
+    }
+
+    private long computePercentileMicros() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBoundMicros(i);
+            }
+        }
+        return upperBoundMicros(BUCKETS - 1);
+    }
+
+    static int bucket(long micros) {
+        if (micros < 4) {
+            return (int) Math.max(0, micros);
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) ((micros >>> (msb - 2)) & 3);
+        return Math.min(BUCKETS - 1, (msb - 1) * 4 + sub);
+    }
+
+    /**
+     * @return the smallest value above every value in the bucket
+     */
+    static long upperBoundMicros(int bucket) {
+        if (bucket < 4) {
+            return bucket + 1;
+        }
+        int msb = bucket / 4 + 1;
+        int sub = bucket % 4;
+        return (5L + sub) << (msb - 2);
+    }
+}
@@ -0,0 +1,30 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.Descriptors;
+
+/**
+ * Lets requests name their method by its index in the service rather than by service and method name.
+ *
+ * An index only means the same method to both sides if they were built from the same service definition, so servers
+ * advertise a fingerprint of theirs on every response, and clients send indexes only to servers whose fingerprint
+ * matches their own, and names otherwise.
+ */
+final class MethodTable {
+
+    private MethodTable() {
+    }
+
+    /**
+     * @return a hash of the service's name and of its methods' names and types, in order, never 0, which stands for
+     * servers that take names only
+     */
+    static int fingerprint(Descriptors.ServiceDescriptor service) {
+        int hash = service.getFullName().hashCode();
+        for (Descriptors.MethodDescriptor method : service.getMethods()) {
+            hash = 31 * hash + method.getName().hashCode();
+            hash = 31 * hash + method.getInputType().getFullName().hashCode();
+            hash = 31 * hash + method.getOutputType().getFullName().hashCode();
+        }
+        return hash != 0 ? hash : 1;
+    }
+}
@@ -0,0 +1,97 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Fixed size table of in flight requests keyed by request id.
+ *
+ * Ids are handed out by a counter, so the slot for an id is just {@code id & mask} and consecutive requests never
+ * collide. A slot is only still taken when the request that holds it has been outstanding for at least a whole lap
+ * of the table, i.e. it is either very slow or will never complete. Insert and remove are a single CAS, nothing is
+ * boxed or allocated.
+ */
+class PendingRequests<T extends PendingRequests.Entry> {
+
+    interface Entry {
+        long id();
+    }
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    PendingRequests(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return false if the slot for the entry's id is still held by an older request, see {@link #occupant(long)}
+     */
+    boolean put(T entry) {
+        return slots.compareAndSet(index(entry.id()), null, entry);
+    }
+
+    /**
+     * @return the entry for the id, or null if it was never added or has already been removed
+     */
+    T remove(long id) {
+        int index = index(id);
+        T entry = slots.get(index);
+        if (entry != null && entry.id() == id && slots.compareAndSet(index, entry, null)) {
+            return entry;
+        }
+        return null;
+    }
+
+    T get(long id) {
+        T entry = slots.get(index(id));
+        return entry != null && entry.id() == id ? entry : null;
+    }
+
+    /**
+     * @return whatever holds the slot the id maps to, which may be a different request
+     */
+    T occupant(long id) {
+        return slots.get(index(id));
+    }
+
+    /**
+     * Hands every entry to the consumer without removing it. Entries put or removed meanwhile may or may not be seen.
+     */
+    void forEach(Consumer<T> consumer) {
+        for (int i = 0; i < slots.length(); i++) {
+            T entry = slots.get(i);
+            if (entry != null) {
+                consumer.accept(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes every entry, handing each one that this call removed to the consumer.
+     */
+    void removeAll(Consumer<T> consumer) {
+        for (int i = 0; i < slots.length(); i++) {
+            T entry = slots.getAndSet(i, null);
+            if (entry != null) {
+                consumer.accept(entry);
+            }
+        }
+    }
+
+    private int index(long id) {
+        return (int) (id & mask);
+    }
+}
@@ -0,0 +1,337 @@
+package com.livefyre.protobuf.rpc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed set of io threads, each polling the sockets of the handlers registered with it.
+ *
+ * ZeroMQ sockets may only be used by one thread, so a handler's sockets are created, used and closed on the io
+ * thread it is registered with. Other threads queue work with the handler and call {@link Registration#wakeup()}.
+ *
+ * By default every channel starts a reactor of its own. A process talking to many services can instead share one
+ * between its channels, see {@link ChannelOptions#setReactor(Reactor)} and {@link #shared()}. Channels sharing a
+ * reactor share its threads and ZeroMQ context, but each keeps its own sockets, queues, admission and stats.
+ */
+public class Reactor {
+
+    private static final Logger logger = LoggerFactory.getLogger(Reactor.class);
+    private static final AtomicLong nextReactorId = new AtomicLong(0);
+    // threads wake each other explicitly, the poll timeout only bounds how long close() takes to be noticed
+    private static final long POLL_TIMEOUT_MILLIS = 1000;
+    private static final byte[] WAKEUP = new byte[0];
+
+    private static volatile Reactor sharedReactor = null;
+
+    /**
+     * Called on the io thread the handler is registered with.
+     */
+    interface Handler {
+        /**
+         * @return the sockets to poll for the handler, closed by the reactor when the handler is canceled
+         */
+        ZMQ.Socket[] open(ZContext context);
+
+        void onReadable(ZMQ.Socket socket);
+
+        /**
+         * @return true if there is more to send, which makes the io thread come back without waiting
+         */
+        boolean flush();
+
+        /**
+         * The io thread stopped before the handler was canceled, e.g. because it failed.
+         */
+        void onStopped();
+    }
+
+    final class Registration {
+        private final Handler handler;
+        private final IoThread thread;
+        private ZMQ.Socket[] sockets;
+        private volatile boolean canceled = false;
+
+        private Registration(Handler handler, IoThread thread) {
+            this.handler = handler;
+            this.thread = thread;
+        }
+
+        void wakeup() {
+            thread.wakeup();
+        }
+
+        /**
+         * Closes the handler's sockets, the handler is not called again once the io thread has noticed.
+         */
+        void cancel() {
+            canceled = true;
+            thread.changes.add(this);
+            thread.wakeup();
+        }
+    }
+
+    private final IoThread[] threads;
+    private final AtomicInteger nextThread = new AtomicInteger(0);
+    private final ZContext context;
+    private volatile boolean isClosed = false;
+
+    /**
+     * @param numThreads io threads polling sockets, also the number of ZeroMQ io threads doing the actual network io
+     */
+    public Reactor(int numThreads) {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+        }
+        String name = "protobuf-rpc-reactor-" + nextReactorId.incrementAndGet();
+        this.context = new ZContext(numThreads);
+        this.threads = new IoThread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new IoThread(name + "-io-" + i);
+        }
+        for (IoThread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * @return the process wide reactor, started on first use with one thread per four cores and never closed
+     */
+    public static Reactor shared() {
+        Reactor reactor = sharedReactor;
+        if (reactor == null) {
+            synchronized (Reactor.class) {
+                reactor = sharedReactor;
+                if (reactor == null) {
+                    int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+                    reactor = sharedReactor = new Reactor(numThreads);
+                }
+            }
+        }
+        return reactor;
+    }
+
+    public int getNumThreads() {
+        return threads.length;
+    }
+
+    /**
+     * @return handlers, i.e. channel lanes, currently registered
+     */
+    public int getNumRegistrations() {
+        int count = 0;
+        for (IoThread thread : threads) {
+            count += thread.numRegistrations;
+        }
+        return count;
+    }
+
+    /**
+     * Registers the handler with the io thread at index % getNumThreads().
+     */
+    Registration register(Handler handler, int index) {
+        if (isClosed) {
+            throw new IllegalStateException("reactor closed");
+        }
+        IoThread thread = threads[Math.floorMod(index, threads.length)];
+        Registration registration = new Registration(handler, thread);
+        thread.changes.add(registration);
+        thread.wakeup();
+        return registration;
+    }
+
+    /**
+     * Registers the handler with the io threads in turn.
+     */
+    Registration register(Handler handler) {
+        return register(handler, nextThread.getAndIncrement());
+    }
+
+    /**
+     * Stops the io threads and closes every socket, channels still using the reactor are closed. Has no effect on the
+     * shared reactor.
+     */
+    public void close() {
+        if (this == sharedReactor) {
+            return;
+        }
+        isClosed = true;
+        for (IoThread thread : threads) {
+            thread.wakeup();
+            thread.closeSender();
+        }
+        // blocks until every io thread has closed its sockets
+        context.close();
+    }
+
+    private class IoThread extends Thread {
+        private final ConcurrentLinkedQueue<Registration> changes = new ConcurrentLinkedQueue<>();
+        private final List<Registration> registrations = new ArrayList<>();
+        private volatile int numRegistrations = 0;
+        private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+        private final Object wakeupLock = new Object();
+        private ZMQ.Socket wakeupSender;
+        private final ZMQ.Socket wakeupReceiver;
+
+        IoThread(String threadName) {
+            super(threadName);
+            setDaemon(true);
+            // inproc requires bind before connect, so both ends are set up before the thread starts. They are
+            // created outside of the ZContext because each end is closed by the thread that owns it.
+            String wakeupEndpoint = "inproc://" + threadName + "-wakeup";
+            wakeupReceiver = context.getContext().socket(ZMQ.PAIR);
+            wakeupReceiver.setLinger(0);
+            wakeupReceiver.bind(wakeupEndpoint);
+            wakeupSender = context.getContext().socket(ZMQ.PAIR);
+            wakeupSender.setLinger(0);
+            wakeupSender.connect(wakeupEndpoint);
+        }
+
+        /**
+         * Signals the thread that there is work queued. Only the first caller after each drain pays for a send.
+         */
+        void wakeup() {
+            if (wakeupPending.compareAndSet(false, true)) {
+                synchronized (wakeupLock) {
+                    if (wakeupSender != null) {
+                        wakeupSender.send(WAKEUP, ZMQ.DONTWAIT);
+                    }
+                }
+            }
+        }
+
+        void closeSender() {
+            synchronized (wakeupLock) {
+                if (wakeupSender != null) {
+                    wakeupSender.close();
+                    wakeupSender = null;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            // https://github.com/zeromq/jeromq/wiki/Sharing-ZContext-between-thread
+            ZContext shadowContext = ZContext.shadow(context);
+            try {
+                pollLoop(shadowContext);
+            } catch (RuntimeException e) {
+                // e.g. close() terminated the context before a socket was created
+                if (!isClosed) {
+                    logger.warn("io thread failed, thread -> {}", getName(), e);
+                }
+            } finally {
+                // close() blocks terminating the context until every socket is closed, destroy closes the handlers'
+                wakeupReceiver.close();
+                shadowContext.destroy();
+                for (Registration registration : registrations) {
+                    if (!registration.canceled) {
+                        registration.handler.onStopped();
+                    }
+                }
+                Registration registration;
+                while ((registration = changes.poll()) != null) {
+                    if (!registration.canceled) {
+                        registration.handler.onStopped();
+                    }
+                }
+            }
+        }
+
+        private void pollLoop(ZContext shadowContext) {
+            long pollTimeout = POLL_TIMEOUT_MILLIS;
+            ZMQ.PollItem[] items = pollItems();
+            Registration[] owners = pollOwners(items.length);
+            while (!isClosed) {
+                if (!changes.isEmpty()) {
+                    applyChanges(shadowContext);
+                    items = pollItems();
+                    owners = pollOwners(items.length);
+                }
+                ZMQ.poll(items, pollTimeout);
+                if (items[0].isReadable()) {
+                    while (wakeupReceiver.recv(ZMQ.DONTWAIT) != null) {
+                        // coalesced, one pass below serves every signal
+                    }
+                }
+                // cleared before flushing so work queued after the flush signals again
+                wakeupPending.set(false);
+                for (int i = 1; i < items.length; i++) {
+                    if (items[i].isReadable() && !owners[i].canceled) {
+                        owners[i].handler.onReadable(items[i].getSocket());
+                    }
+                }
+                boolean more = false;
+                for (int i = 0; i < registrations.size(); i++) {
+                    Registration registration = registrations.get(i);
+                    if (!registration.canceled) {
+                        more |= registration.handler.flush();
+                    }
+                }
+                pollTimeout = more ? 0 : POLL_TIMEOUT_MILLIS;
+            }
+        }
+
+        private void applyChanges(ZContext shadowContext) {
+            Registration registration;
+            while ((registration = changes.poll()) != null) {
+                if (registration.sockets == null && !registration.canceled) {
+                    open(shadowContext, registration);
+                } else if (registration.sockets != null && registrations.remove(registration)) {
+                    for (ZMQ.Socket socket : registration.sockets) {
+                        shadowContext.destroySocket(socket);
+                    }
+                }
+            }
+            numRegistrations = registrations.size();
+        }
+
+        private void open(ZContext shadowContext, Registration registration) {
+            try {
+                registration.sockets = registration.handler.open(shadowContext);
+            } catch (RuntimeException e) {
+                if (isClosed) {
+                    throw e;
+                }
+                // e.g. a malformed endpoint, which should not take down the other handlers on this thread
+                logger.warn("unable to open socket, thread -> {}", getName(), e);
+                registration.handler.onStopped();
+                return;
+            }
+            registrations.add(registration);
+        }
+
+        private ZMQ.PollItem[] pollItems() {
+            List<ZMQ.PollItem> items = new ArrayList<>();
+            items.add(new ZMQ.PollItem(wakeupReceiver, ZMQ.Poller.POLLIN));
+            for (Registration registration : registrations) {
+                for (ZMQ.Socket socket : registration.sockets) {
+                    items.add(new ZMQ.PollItem(socket, ZMQ.Poller.POLLIN));
+                }
+            }
+            return items.toArray(new ZMQ.PollItem[items.size()]);
+        }
+
+        /**
+         * @return the registration each poll item's socket belongs to, null for the wakeup socket
+         */
+        private Registration[] pollOwners(int numItems) {
+            Registration[] owners = new Registration[numItems];
+            int i = 1;
+            for (Registration registration : registrations) {
+                for (int j = 0; j < registration.sockets.length; j++) {
+                    owners[i++] = registration;
+                }
+            }
+            return owners;
+        }
+    }
+}
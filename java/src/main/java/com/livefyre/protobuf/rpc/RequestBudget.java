@@ -0,0 +1,70 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket capping extra requests, such as hedges, to a fraction of the requests they are made for.
+ *
+ * Every original request deposits ratio tokens and every extra request withdraws a whole one, so over time extra
+ * requests never exceed ratio times the original ones. The balance is capped so that a quiet period does not save up
+ * a burst. Tokens are kept in thousandths to stay on a single atomic long.
+ */
+class RequestBudget {
+
+    private static final long UNIT = 1000;
+
+    private final long deposit;
+    private final long maxBalance;
+    private final AtomicLong balance = new AtomicLong(0);
+
+    /**
+     * @param ratio      extra requests allowed per original request, between 0 and 1
+     * @param maxBalance tokens that can be saved up
+     */
+    RequestBudget(double ratio, int maxBalance) {
+        if (ratio < 0 || ratio > 1 || maxBalance < 1) {
+            throw new IllegalArgumentException("invalid budget, ratio -> " + ratio + ", max balance -> " + maxBalance);
+        }
+        this.deposit = Math.round(ratio * UNIT);
+        this.maxBalance = maxBalance * UNIT;
+    }
+
+    void deposit() {
+        while (true) {
+            long current = balance.get();
+            long next = Math.min(maxBalance, current + deposit);
+            if (next == current || balance.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token that was withdrawn but not spent.
+     */
+    void refund() {
+        while (true) {
+            long current = balance.get();
+            long next = Math.min(maxBalance, current + UNIT);
+            if (next == current || balance.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    boolean tryWithdraw() {
+        while (true) {
+            long current = balance.get();
+            if (current < UNIT) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - UNIT)) {
+                return true;
+            }
+        }
+    }
+
+    double getBalance() {
+        return (double) balance.get() / UNIT;
+    }
+}
@@ -0,0 +1,281 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+
+import java.util.HashMap;
+
+/**
+ * Byte bounded cache of responses, see {@link CachePolicy}.
+ *
+ * Entries go through a small LRU window first, 1% of the bytes. Entries pushed out of the window join the main
+ * region's probation segment only if the frequency sketch has seen them more often than the entry they would push
+ * out, and move on to its protected segment, 80% of the main region, when they are hit again there (W-TinyLFU).
+ * Expired entries are dropped when they are next asked for or reach the end of their segment.
+ *
+ * Responses are kept parsed, messages are immutable, so a hit costs a lookup and no parsing. A single lock guards
+ * everything, which is cheap next to the round trip a hit saves.
+ */
+class ResponseCache {
+
+    // rough per entry cost of the node, key and map entry, added to the serialized sizes
+    static final int ENTRY_OVERHEAD = 128;
+    // average entry size assumed when sizing the frequency sketch
+    private static final int EXPECTED_ENTRY_BYTES = 1024;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    static final class Key {
+        final String method;
+        final ByteString request;
+        private final int hash;
+
+        Key(String method, ByteString request) {
+            this.method = method;
+            this.request = request;
+            this.hash = 31 * method.hashCode() + request.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && method.equals(other.method) && request.equals(other.request);
+        }
+    }
+
+    private static final class Node {
+        final Key key;
+        Message response;
+        long weight;
+        long expiresNanos;
+        int segment;
+        Node prev;
+        Node next;
+
+        Node(Key key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Segment {
+        Node head;
+        Node tail;
+        long bytes = 0;
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            bytes += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            bytes -= node.weight;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxWindowBytes;
+    private final long maxProtectedBytes;
+    private final HashMap<Key, Node> entries = new HashMap<>();
+    private final Segment[] segments = {new Segment(), new Segment(), new Segment()};
+    private final FrequencySketch sketch;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long rejections = 0;
+
+    ResponseCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.maxWindowBytes = Math.max(1, maxBytes / 100);
+        this.maxProtectedBytes = (maxBytes - maxWindowBytes) * 8 / 10;
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxBytes / EXPECTED_ENTRY_BYTES));
+    }
+
+    /**
+     * @return the cached response, null if there is none or it expired
+     */
+    synchronized Message get(Key key, long nowNanos) {
+        sketch.increment(key.hashCode());
+        Node node = entries.get(key);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        if (nowNanos - node.expiresNanos >= 0) {
+            remove(node);
+            misses++;
+            return null;
+        }
+        hits++;
+        Segment segment = segments[node.segment];
+        segment.remove(node);
+        if (node.segment == PROBATION) {
+            node.segment = PROTECTED;
+            segments[PROTECTED].addLast(node);
+            demoteProtected();
+        } else {
+            segment.addLast(node);
+        }
+        return node.response;
+    }
+
+    synchronized void put(Key key, Message response, long ttlNanos, long nowNanos) {
+        long expiresNanos = nowNanos + ttlNanos;
+        long weight = ENTRY_OVERHEAD + key.method.length() + key.request.size() + response.getSerializedSize();
+        if (weight > maxBytes - maxWindowBytes) {
+            rejections++;
+            return;
+        }
+        Node node = entries.get(key);
+        if (node != null) {
+            // refreshed, e.g. by a concurrent miss for the same request
+            Segment segment = segments[node.segment];
+            segment.remove(node);
+            node.response = response;
+            node.weight = weight;
+            node.expiresNanos = expiresNanos;
+            segment.addLast(node);
+            demoteProtected();
+        } else {
+            node = new Node(key);
+            node.response = response;
+            node.weight = weight;
+            node.expiresNanos = expiresNanos;
+            node.segment = WINDOW;
+            entries.put(key, node);
+            segments[WINDOW].addLast(node);
+        }
+        evict(nowNanos);
+    }
+
+    synchronized void invalidateAll() {
+        entries.clear();
+        for (Segment segment : segments) {
+            segment.head = null;
+            segment.tail = null;
+            segment.bytes = 0;
+        }
+    }
+
+    /**
+     * Moves the window's overflow into probation, each candidate competing by frequency with the probation entry it
+     * would push out, until the cache fits.
+     */
+    private void evict(long nowNanos) {
+        Segment window = segments[WINDOW];
+        Segment probation = segments[PROBATION];
+        while (window.bytes > maxWindowBytes) {
+            Node candidate = window.head;
+            window.remove(candidate);
+            candidate.segment = PROBATION;
+            probation.addLast(candidate);
+            while (candidate != null && bytes() > maxBytes) {
+                Node victim = probation.head != null && probation.head != candidate
+                        ? probation.head
+                        : segments[PROTECTED].head;
+                if (victim == null) {
+                    break;
+                }
+                if (nowNanos - victim.expiresNanos >= 0) {
+                    remove(victim);
+                } else if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                    remove(victim);
+                    evictions++;
+                } else {
+                    remove(candidate);
+                    rejections++;
+                    candidate = null;
+                }
+            }
+        }
+        // the window alone may still be over if it holds what the main region was emptied of
+        while (bytes() > maxBytes && window.head != null) {
+            remove(window.head);
+            evictions++;
+        }
+    }
+
+    private void demoteProtected() {
+        Segment protected_ = segments[PROTECTED];
+        while (protected_.bytes > maxProtectedBytes) {
+            Node node = protected_.head;
+            protected_.remove(node);
+            node.segment = PROBATION;
+            segments[PROBATION].addLast(node);
+        }
+    }
+
+    private void remove(Node node) {
+        segments[node.segment].remove(node);
+        entries.remove(node.key);
+    }
+
+    private long bytes() {
+        return segments[WINDOW].bytes + segments[PROBATION].bytes + segments[PROTECTED].bytes;
+    }
+
+    synchronized long getBytes() {
+        return bytes();
+    }
+
+    synchronized int getEntries() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return entries pushed out to make room, not counting expired ones
+     */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return new entries turned away because they were asked for less often than what they would replace
+     */
+    synchronized long getRejections() {
+        return rejections;
+    }
+}
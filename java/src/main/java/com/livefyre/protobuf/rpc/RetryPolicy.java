@@ -0,0 +1,148 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which calls a channel retries and how, see {@link ChannelOptions#setRetryPolicy(RetryPolicy)}.
+ *
+ * A call of one of the policy's methods that times out, or that the server fails with one of the retryable errors,
+ * is sent again to a different endpoint after an exponential backoff with full jitter, up to maxAttempts in all.
+ * All attempts share the controller's timeout, each getting what is left of it or at most attemptTimeout, and a
+ * retry whose backoff would end after the timeout is not made. Retries are capped by a budget, by default 10% of the
+ * calls to the policy's methods, so that they cannot multiply the load on servers that are already struggling. Only
+ * retry methods that are safe to run twice.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 10;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 1000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+
+    private final Set<String> methods;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private boolean retryOnTimeout = true;
+    private long attemptTimeoutMillis = 0;
+    private Set<ErrorReason> retryableErrors = EnumSet.of(ErrorReason.RPC_ERROR);
+
+    /**
+     * @param methods full names of the methods to retry, e.g. "package.Service.method"
+     */
+    public RetryPolicy(String... methods) {
+        this.methods = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(methods)));
+    }
+
+    public boolean appliesTo(MethodDescriptor method) {
+        return methods.contains(method.getFullName());
+    }
+
+    public boolean isRetryable(ErrorReason error) {
+        return retryableErrors.contains(error);
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @return a random backoff of up to initialBackoff doubled for each retry after the first, capped at maxBackoff
+     */
+    long backoffNanos(int retry) {
+        long ceiling = initialBackoffMillis << Math.min(retry - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffMillis) {
+            ceiling = maxBackoffMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(TimeUnit.MILLISECONDS.toNanos(ceiling) + 1);
+    }
+
+    public Set<String> getMethods() {
+        return methods;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts attempts per call including the first one
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public RetryPolicy setInitialBackoffMillis(long initialBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+        return this;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public RetryPolicy setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * @param budgetRatio retries allowed per retryable call, between 0 and 1
+     */
+    public RetryPolicy setBudgetRatio(double budgetRatio) {
+        this.budgetRatio = budgetRatio;
+        return this;
+    }
+
+    public boolean isRetryOnTimeout() {
+        return retryOnTimeout;
+    }
+
+    public RetryPolicy setRetryOnTimeout(boolean retryOnTimeout) {
+        this.retryOnTimeout = retryOnTimeout;
+        return this;
+    }
+
+    public long getAttemptTimeoutMillis() {
+        return attemptTimeoutMillis;
+    }
+
+    /**
+     * @param attemptTimeoutMillis how long each attempt may take before it is retried, within the controller's
+     *                             timeout, 0 for all that is left of it
+     */
+    public RetryPolicy setAttemptTimeoutMillis(long attemptTimeoutMillis) {
+        this.attemptTimeoutMillis = attemptTimeoutMillis;
+        return this;
+    }
+
+    public Set<ErrorReason> getRetryableErrors() {
+        return retryableErrors;
+    }
+
+    /**
+     * @param retryableErrors server errors worth retrying elsewhere, by default RPC_ERROR
+     */
+    public RetryPolicy setRetryableErrors(ErrorReason... retryableErrors) {
+        this.retryableErrors = retryableErrors.length == 0
+                ? EnumSet.noneOf(ErrorReason.class)
+                : EnumSet.copyOf(Arrays.asList(retryableErrors));
+        return this;
+    }
+}
@@ -6,77 +6,276 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zeromq.*;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Server {
 
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = 4096;
+
     private static final Logger logger = LoggerFactory.getLogger(Server.class);
-    private volatile boolean isRunning = false;
+    // messages read or written per pass of the io thread, so that neither direction starves the other
+    private static final int MAX_IO_BATCH = 256;
     private final String address;
-    private final int numConcurrency;
     private final ExecutorService requestHandlerPool;
     private final Service service;
+    // by method name, as requests name them
+    private final Map<String, MethodDispatch> methods;
+    // by index in the service, for clients that share the server's method table
+    private final MethodDispatch[] methodsByIndex;
+    private final int methodTable;
+    // null when the server neither compresses nor decompresses
+    private final CompressionPolicy compressionPolicy;
+    private final CompressionStats compressionStats = new CompressionStats();
 
-    private ZContext context = null;
-    private ZMQ.Socket frontend = null;
-    private ZMQ.Socket backend = null;
+    // cancels that arrive before their request is dispatched are kept this long, in case it still comes
+    private static final long EARLY_CANCEL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    static final int MAX_EARLY_CANCELS = 4096;
 
-    Server(String address, int numConcurrency, Service service) {
-        this.address = address;
-        this.numConcurrency = numConcurrency;
-        this.requestHandlerPool = Executors.newFixedThreadPool(numConcurrency);
-        this.service = service;
+    // calls being handled, so that a cancel finds their controller
+    private final ConcurrentHashMap<CallKey, Controller> activeCalls = new ConcurrentHashMap<>();
+    // cancels for requests not seen yet, e.g. still queued for a busy worker, with when they arrived
+    private final ConcurrentHashMap<CallKey, Long> earlyCancels = new ConcurrentHashMap<>();
+    // the keys of earlyCancels in the order they arrived, including ones since removed, io thread only
+    private final ArrayDeque<CallKey> earlyCancelOrder = new ArrayDeque<>();
+    // early cancels forgotten to make room for newer ones before they expired
+    private final LongAdder droppedCancels = new LongAdder();
+    // requests dropped because their client had already timed out
+    private final LongAdder expiredRequests = new LongAdder();
+    private final LongAdder activeCallCount = new LongAdder();
+
+    // responses from the handlers, serialized and written by the io thread
+    private final ConcurrentLinkedQueue<Outbound> responseQueue = new ConcurrentLinkedQueue<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private Reactor reactor = null;
+    private volatile Reactor.Registration registration = null;
+
+    /**
+     * A request is identified by the client that sent it, its routing id, and its id within that client.
+     */
+    private static final class CallKey {
+        final byte[] client;
+        final long id;
+        private final int hash;
+
+        CallKey(byte[] client, long id) {
+            this.client = client;
+            this.id = id;
+            this.hash = 31 * Arrays.hashCode(client) + Long.hashCode(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CallKey)) {
+                return false;
+            }
+            CallKey other = (CallKey) o;
+            return id == other.id && Arrays.equals(client, other.client);
+        }
     }
 
-    public static Server create(String address, int numConcurrency, Service service) {
-        return new Server(address, numConcurrency, service);
+    /**
+     * What a method name or index resolves to, looked up once when the server is created rather than for every
+     * request.
+     */
+    private static final class MethodDispatch {
+        final Descriptors.MethodDescriptor method;
+        final Parser<? extends Message> requestParser;
+
+        MethodDispatch(Descriptors.MethodDescriptor method, Parser<? extends Message> requestParser) {
+            this.method = method;
+            this.requestParser = requestParser;
+        }
     }
 
-    void start() {
-        logger.info("starting server...");
-        context = new ZContext();
+    /**
+     * A response on its way to the io thread, with the frames it is routed back by and the handler's message, which
+     * is serialized straight into the response's frame, or into a frame of its own for requests that came that way.
+     */
+    private static final class Outbound {
+        final ZMsg routing;
+        final SocketRpcProtos.Response response;
+        final Message message;
+        final boolean isPayloadFrame;
 
-        frontend = context.createSocket(ZMQ.ROUTER);
-        frontend.bind(address);
+        Outbound(ZMsg routing, SocketRpcProtos.Response response, Message message, boolean isPayloadFrame) {
+            this.routing = routing;
+            this.response = response;
+            this.message = message;
+            this.isPayloadFrame = isPayloadFrame;
+        }
+    }
 
-        backend = context.createSocket(ZMQ.DEALER);
-        backend.bind("inproc://backend");
+    /**
+     * The server's ROUTER socket, on the reactor's io thread. Requests are parsed there and handed straight to the
+     * handler pool, responses come back through responseQueue.
+     */
+    private class Frontend implements Reactor.Handler {
+        private ZMQ.Socket socket;
+        private final BufferPool buffers = new BufferPool(1);
 
-        isRunning = true;
+        @Override
+        public ZMQ.Socket[] open(ZContext context) {
+            socket = context.createSocket(ZMQ.ROUTER);
+            socket.bind(address);
+            return new ZMQ.Socket[]{socket};
+        }
 
-        for (int i = 0; i < numConcurrency; i++) {
-            requestHandlerPool.execute(() -> {
-                // https://github.com/zeromq/jeromq/wiki/Sharing-ZContext-between-thread
-                ZContext shadowContext = ZContext.shadow(context);
-                ZMQ.Socket worker = shadowContext.createSocket(ZMQ.DEALER);
-                worker.connect("inproc://backend");
-                ZMQ.PollItem[] items = new ZMQ.PollItem[] { new ZMQ.PollItem(worker, ZMQ.Poller.POLLIN) };
-                while (isRunning) {
-                    ZMQ.poll(items, 10);
-                    if (items[0].isReadable()) {
-                        try {
-                            handleRequest(worker, ZMsg.recvMsg(worker));
-                        } catch (Exception e) {
-                            logger.warn("unhandled exception processing request", e);
-                        }
-                    }
+        @Override
+        public void onReadable(ZMQ.Socket socket) {
+            long arrivedNanos = System.nanoTime();
+            ZMsg message;
+            for (int i = 0; i < MAX_IO_BATCH && (message = ZMsg.recvMsg(socket, ZMQ.DONTWAIT)) != null; i++) {
+                receive(message, arrivedNanos);
+            }
+        }
+
+        @Override
+        public boolean flush() {
+            Outbound outbound;
+            for (int i = 0; i < MAX_IO_BATCH && (outbound = responseQueue.poll()) != null; i++) {
+                send(outbound);
+            }
+            return !responseQueue.isEmpty();
+        }
+
+        private void send(Outbound outbound) {
+            boolean isSplit = outbound.isPayloadFrame && outbound.message != null;
+            int size = outbound.response.getSerializedSize();
+            int payloadSize = isSplit ? outbound.message.getSerializedSize() : 0;
+            if (outbound.message != null && !isSplit) {
+                size += CodedOutputStream.computeMessageSize(SocketRpcProtos.Response.RESPONSE_PROTO_FIELD_NUMBER,
+                        outbound.message);
+            }
+            byte[] buffer = buffers.acquire(Math.max(size, payloadSize));
+            try {
+                CodedOutputStream output = CodedOutputStream.newInstance(buffer, 0, size);
+                outbound.response.writeTo(output);
+                if (outbound.message != null && !isSplit) {
+                    output.writeMessage(SocketRpcProtos.Response.RESPONSE_PROTO_FIELD_NUMBER, outbound.message);
                 }
-                logger.info("worker closing...");
-                shadowContext.destroy();
-            });
+                output.checkNoSpaceLeft();
+                for (ZFrame frame : outbound.routing) {
+                    socket.send(frame.getData(), ZMQ.SNDMORE);
+                }
+                // copies the bytes, so that the buffer can be reused right away
+                socket.send(buffer, 0, size, isSplit ? ZMQ.SNDMORE : 0);
+                if (isSplit) {
+                    output = CodedOutputStream.newInstance(buffer, 0, payloadSize);
+                    outbound.message.writeTo(output);
+                    output.checkNoSpaceLeft();
+                    socket.send(buffer, 0, payloadSize, 0);
+                }
+            } catch (IOException e) {
+                // the sizes above are exact, and messages are immutable
+                throw new IllegalStateException("response serialized to an unexpected size", e);
+            }
+            buffers.release(buffer);
+            outbound.routing.destroy();
+        }
+
+        @Override
+        public void onStopped() {
+            logger.warn("server io thread stopped, address -> {}", address);
+            stop();
+        }
+    }
+
+    Server(String address, int numConcurrency, Service service, CompressionPolicy compressionPolicy,
+           int maxQueuedRequests) {
+        this.address = address;
+        this.requestHandlerPool = new ThreadPoolExecutor(numConcurrency, numConcurrency, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueuedRequests));
+        this.service = service;
+        this.methodsByIndex = dispatchTable(service);
+        this.methods = new HashMap<>();
+        for (MethodDispatch dispatch : methodsByIndex) {
+            methods.put(dispatch.method.getName(), dispatch);
+        }
+        this.methodTable = MethodTable.fingerprint(service.getDescriptorForType());
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    private static MethodDispatch[] dispatchTable(Service service) {
+        List<Descriptors.MethodDescriptor> methods = service.getDescriptorForType().getMethods();
+        MethodDispatch[] dispatches = new MethodDispatch[methods.size()];
+        for (Descriptors.MethodDescriptor method : methods) {
+            dispatches[method.getIndex()] =
+                    new MethodDispatch(method, service.getRequestPrototype(method).getParserForType());
         }
+        return dispatches;
+    }
+
+    public static Server create(String address, int numConcurrency, Service service) {
+        return new Server(address, numConcurrency, service, null, DEFAULT_MAX_QUEUED_REQUESTS);
+    }
 
-        ZMQ.proxy(frontend, backend, null);
+    /**
+     * @param compressionPolicy which response protos are compressed, for clients that accept it, and which codecs
+     *                          requests may come compressed with
+     */
+    public static Server create(String address, int numConcurrency, Service service,
+                                CompressionPolicy compressionPolicy) {
+        return new Server(address, numConcurrency, service, compressionPolicy, DEFAULT_MAX_QUEUED_REQUESTS);
+    }
+
+    /**
+     * @param compressionPolicy null for none, see {@link #create(String, int, Service, CompressionPolicy)}
+     * @param maxQueuedRequests requests that may wait for a handler thread, past which they fail right away with
+     *                          OVERLOADED rather than wait longer than their clients would
+     */
+    public static Server create(String address, int numConcurrency, Service service,
+                                CompressionPolicy compressionPolicy, int maxQueuedRequests) {
+        return new Server(address, numConcurrency, service, compressionPolicy, maxQueuedRequests);
+    }
 
+    /**
+     * Serves requests until {@link #stop()}. A single io thread owns the socket, numConcurrency threads run the
+     * handlers. Requests wait in one queue shared by the handler threads, so each goes to whichever thread frees up
+     * first, and a slow call holds up nothing but its own thread. A request that finds the queue full fails right
+     * away with OVERLOADED.
+     *
+     * Handlers need not complete a call before they return. They can keep the callback and run it later from any
+     * thread, e.g. once an asynchronous database call finishes, so that the calls in flight are not capped by the
+     * number of handler threads. A handler fails a call with controller.setFailed and done.run(null).
+     */
+    void start() {
+        logger.info("starting server...");
+        reactor = new Reactor(1);
+        registration = reactor.register(new Frontend());
+        // for responses queued before registration was assigned, e.g. by a handler already running by then
+        registration.wakeup();
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         tearDown();
     }
 
     public void stop() {
         logger.info("stopping server...");
-        isRunning = false;
+        stopped.countDown();
     }
 
     private void tearDown() {
@@ -86,66 +285,311 @@ public class Server {
         } catch (InterruptedException e) {
             requestHandlerPool.shutdownNow();
         }
-        context.destroy();
+        reactor.close();
     }
 
-    private void handleRequest(ZMQ.Socket socket, ZMsg zMessage) {
-        SocketRpcProtos.Response.Builder response = SocketRpcProtos.Response.newBuilder();
+    public long getExpiredRequests() {
+        return expiredRequests.sum();
+    }
 
-        ZFrame content = zMessage.removeLast();
+    /**
+     * @return cancels that came before their request and were forgotten to make room for newer ones, so that their
+     * request ran after all
+     */
+    public long getDroppedCancels() {
+        return droppedCancels.sum();
+    }
+
+    /**
+     * @return calls dispatched to a handler that has not completed them yet, including ones completing
+     * asynchronously after their handler returned
+     */
+    public long getActiveCalls() {
+        return activeCallCount.sum();
+    }
+
+    /**
+     * @return response protos compressed and request protos decompressed, see {@link CompressionPolicy}
+     */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
 
-        SocketRpcProtos.Request request = null;
+    /**
+     * Parses a request on the io thread. Cancels are handled right away, rather than queued behind the very request
+     * they cancel, everything else goes to the handler pool.
+     */
+    private void receive(ZMsg zMessage, long arrivedNanos) {
+        ZFrame content = zMessage.removeLast();
+        ZFrame payload = null;
+        // a request is never empty, so a frame other than the empty delimiter before the last one means the request
+        // proto came in a frame of its own
+        if (zMessage.size() > 1 && zMessage.getLast().size() > 0) {
+            payload = content;
+            content = zMessage.removeLast();
+        }
+        SocketRpcProtos.Request request;
+        Envelope envelope;
         try {
-            request = SocketRpcProtos.Request.parseFrom(content.getData());
-        } catch (InvalidProtocolBufferException e) {
+            // the request proto stays in the frame until a handler thread parses it
+            SocketRpcProtos.Request.Builder builder = SocketRpcProtos.Request.newBuilder();
+            Envelope parsed = Envelope.parse(content.getData(), SocketRpcProtos.Request.REQUEST_PROTO_FIELD_NUMBER,
+                    builder);
+            envelope = payload != null ? Envelope.ofPayload(payload.getData()) : parsed;
+            if (envelope.hasPayload()) {
+                builder.setRequestProto(ByteString.EMPTY);
+            }
+            request = builder.build();
+        } catch (InvalidProtocolBufferException|UninitializedMessageException e) {
             logger.warn("invalid request proto, b64content -> {}", new String(Base64.getEncoder().encode(content.getData())));
-            response.setErrorCode(SocketRpcProtos.ErrorReason.INVALID_REQUEST_PROTO);
-            send(socket, zMessage, response);
+            send(zMessage, SocketRpcProtos.Response.newBuilder()
+                    .setErrorCode(SocketRpcProtos.ErrorReason.INVALID_REQUEST_PROTO));
+            return;
+        }
+        CallKey key = new CallKey(zMessage.getFirst().getData(), request.getId());
+        if (request.getCancel()) {
+            cancel(key);
             return;
         }
+        try {
+            requestHandlerPool.execute(() -> {
+                try {
+                    handleRequest(zMessage, request, envelope, key, arrivedNanos);
+                } catch (Exception e) {
+                    logger.warn("unhandled exception processing request", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (requestHandlerPool.isShutdown()) {
+                logger.debug("dropping request, server stopped, id -> {}", request.getId());
+                return;
+            }
+            logger.debug("rejecting request, queue full, id -> {}", request.getId());
+            send(zMessage, SocketRpcProtos.Response.newBuilder()
+                    .setRequestId(request.getId())
+                    .setErrorCode(SocketRpcProtos.ErrorReason.OVERLOADED));
+        }
+    }
 
+    private MethodDispatch dispatch(SocketRpcProtos.Request request) {
+        if (request.hasMethodIndex()) {
+            int index = request.getMethodIndex();
+            return index < methodsByIndex.length ? methodsByIndex[index] : null;
+        }
+        return methods.get(request.getMethodName());
+    }
+
+    private void handleRequest(ZMsg zMessage, SocketRpcProtos.Request request, Envelope envelope, CallKey key,
+                               long arrivedNanos) {
+        SocketRpcProtos.Response.Builder response = SocketRpcProtos.Response.newBuilder();
         response.setRequestId(request.getId());
+        // the codec the client accepts responses in and would compress requests with, null if the server has none
+        Codec codec = compressionPolicy != null && request.getAcceptedCompression() != 0
+                ? compressionPolicy.getCodec(request.getAcceptedCompression())
+                : null;
+        if (codec != null) {
+            response.setAcceptsCompression(true);
+        }
+        // registered before looking for an early cancel, so that a cancel arriving in between finds the controller,
+        // see cancel()
+        Controller controller = new Controller();
+        activeCalls.put(key, controller);
+        if (earlyCancels.remove(key) != null) {
+            activeCalls.remove(key);
+            logger.debug("dropping canceled request, id -> {}", request.getId());
+            return;
+        }
+        long deadlineNanos = 0;
+        if (request.hasHeaders() && request.getHeaders().getTimeoutMillis() > 0) {
+            deadlineNanos = arrivedNanos + TimeUnit.MILLISECONDS.toNanos(request.getHeaders().getTimeoutMillis());
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                // the client gave up while the request waited for a worker, nobody would read the response
+                activeCalls.remove(key);
+                expiredRequests.increment();
+                logger.debug("dropping expired request, id -> {}", request.getId());
+                return;
+            }
+        }
 
-        Descriptors.MethodDescriptor method = service.getDescriptorForType().findMethodByName(request.getMethodName());
-        if (method == null) {
+        MethodDispatch dispatch = dispatch(request);
+        if (dispatch == null) {
+            activeCalls.remove(key);
             logger.warn("method not found, id -> {}, method -> {}, proto -> {}",
                     request.getId(), request.getMethodName(), request);
             response.setErrorCode(SocketRpcProtos.ErrorReason.METHOD_NOT_FOUND);
-            send(socket, zMessage, response);
+            send(zMessage, response);
             return;
         }
 
         Message requestMessage;
         try {
-            requestMessage = service.getRequestPrototype(method).toBuilder().mergeFrom(request.getRequestProto()).build();
-        } catch (InvalidProtocolBufferException|UninitializedMessageException e) {
+            Envelope payload = request.getCompression() != 0 ? decompress(request, envelope) : envelope;
+            requestMessage = payload.parsePayload(dispatch.requestParser);
+        } catch (InvalidProtocolBufferException e) {
+            activeCalls.remove(key);
             logger.warn("bad request proto, id -> {}, b64proto -> {}", request.getId(),
-                    new String(Base64.getEncoder().encode(request.getRequestProto().toByteArray())));
+                    new String(Base64.getEncoder().encode(envelope.copyPayload().toByteArray())));
             response.setErrorCode(SocketRpcProtos.ErrorReason.BAD_REQUEST_PROTO);
-            send(socket, zMessage, response);
+            send(zMessage, response);
             return;
         }
 
-        Controller controller = new Controller();
+        controller.setDeadlineNanos(deadlineNanos);
+        activeCallCount.increment();
+        // the handler may complete on any thread, and only its first completion counts
+        AtomicBoolean isDone = new AtomicBoolean(false);
+        Controller previous = controller.enter();
         try {
-            service.callMethod(method, controller, requestMessage, new RpcCallback<Message>() {
+            service.callMethod(dispatch.method, controller, requestMessage, new RpcCallback<Message>() {
                 @Override
                 public void run(Message message) {
-                    response.setResponseProto(message.toByteString());
-                    send(socket, zMessage, response);
+                    if (!isDone.compareAndSet(false, true)) {
+                        logger.warn("handler completed twice, id -> {}", key.id);
+                        return;
+                    }
+                    activeCalls.remove(key);
+                    activeCallCount.decrement();
+                    if (controller.isCanceled()) {
+                        logger.debug("dropping response to canceled request, id -> {}", key.id);
+                        return;
+                    }
+                    if (controller.failed() || message == null) {
+                        response.setErrorCode(SocketRpcProtos.ErrorReason.RPC_FAILED);
+                        if (controller.errorText() != null) {
+                            response.setErrorMessage(controller.errorText());
+                        }
+                    } else {
+                        byte[] compressed = codec != null ? compress(dispatch.method, message, codec) : null;
+                        if (compressed != null) {
+                            response.setCompression(codec.getId()).setResponseProto(ByteString.copyFrom(compressed));
+                            send(zMessage, response);
+                        } else {
+                            send(zMessage, response, message, envelope.isPayloadFrame());
+                        }
+                        return;
+                    }
+                    send(zMessage, response);
                 }
             });
         } catch (Exception e) {
+            if (!isDone.compareAndSet(false, true)) {
+                logger.warn("exception after handler completed, id -> {}", request.getId(), e);
+                return;
+            }
+            activeCalls.remove(key);
+            activeCallCount.decrement();
             logger.warn("exception invoking service, id -> {}, proto -> ", request.getId(), requestMessage);
             response.setErrorCode(SocketRpcProtos.ErrorReason.RPC_ERROR);
-            response.setErrorMessage(e.getMessage());
-            send(socket, zMessage, response);
+            response.setErrorMessage(e.getMessage() == null ? e.toString() : e.getMessage());
+            send(zMessage, response);
+        } finally {
+            Controller.exit(previous);
+        }
+    }
+
+    private Envelope decompress(SocketRpcProtos.Request request, Envelope envelope)
+            throws InvalidProtocolBufferException {
+        Codec codec = compressionPolicy != null ? compressionPolicy.getCodec(request.getCompression()) : null;
+        if (codec == null) {
+            // clients only compress with codecs the server said it accepts
+            throw new InvalidProtocolBufferException("request compressed with unknown codec "
+                    + request.getCompression());
         }
+        long start = System.nanoTime();
+        Envelope decompressed = envelope.decompress(codec, compressionPolicy.getMaxDecompressedBytes());
+        compressionStats.onDecompress(System.nanoTime() - start);
+        return decompressed;
     }
 
-    private void send(ZMQ.Socket socket, ZMsg zMessage, SocketRpcProtos.Response.Builder response) {
-        logger.debug("sending response, proto -> {}", response.build());
-        zMessage.add(new ZFrame(response.build().toByteArray()));
-        zMessage.send(socket);
+    /**
+     * Compresses on the thread that completed the call rather than the io thread, and nested in the Response even
+     * for requests that came in frames of their own.
+     *
+     * @return the message compressed, null if the policy leaves it as is or it did not get smaller
+     */
+    private byte[] compress(Descriptors.MethodDescriptor method, Message message, Codec codec) {
+        int size = message.getSerializedSize();
+        if (!compressionPolicy.appliesTo(method, size)) {
+            return null;
+        }
+        byte[] data = message.toByteArray();
+        long start = System.nanoTime();
+        byte[] compressed = codec.compress(data, 0, data.length);
+        compressionStats.onCompress(data.length, compressed.length, System.nanoTime() - start);
+        return compressed.length < data.length ? compressed : null;
+    }
+
+    /**
+     * Cancels the handler's controller if the request is running, otherwise remembers the cancel so that the request
+     * is dropped before dispatch. handleRequest registers the controller before it looks for the cancel, and this
+     * looks for the controller again after remembering the cancel, so one of the two always sees the other.
+     */
+    private void cancel(CallKey key) {
+        Controller controller = activeCalls.get(key);
+        if (controller == null) {
+            rememberCancel(key, System.nanoTime());
+            controller = activeCalls.get(key);
+            if (controller == null) {
+                return;
+            }
+            earlyCancels.remove(key);
+        }
+        logger.debug("canceling request, id -> {}", key.id);
+        controller.cancelByClient();
+    }
+
+    /**
+     * Keeps an early cancel, forgetting the oldest ones first: those past EARLY_CANCEL_NANOS as they come up, mostly
+     * cancels for requests that had already completed, and any other once MAX_EARLY_CANCELS are kept.
+     */
+    private void rememberCancel(CallKey key, long now) {
+        CallKey oldest;
+        while ((oldest = earlyCancelOrder.peek()) != null) {
+            Long at = earlyCancels.get(oldest);
+            if (at != null && now - at <= EARLY_CANCEL_NANOS && earlyCancels.size() < MAX_EARLY_CANCELS) {
+                break;
+            }
+            earlyCancelOrder.poll();
+            if (at != null && earlyCancels.remove(oldest, at) && now - at <= EARLY_CANCEL_NANOS) {
+                droppedCancels.increment();
+                logger.debug("dropping early cancel to make room, id -> {}", oldest.id);
+            }
+        }
+        if (earlyCancelOrder.size() >= 2 * MAX_EARLY_CANCELS) {
+            // keys of cancels whose requests came, queued behind one that did not
+            earlyCancelOrder.removeIf(k -> !earlyCancels.containsKey(k));
+        }
+        earlyCancels.put(key, now);
+        earlyCancelOrder.add(key);
+    }
+
+    /**
+     * Queues the response for the io thread, the only one that may write to the socket.
+     */
+    private void send(ZMsg zMessage, SocketRpcProtos.Response.Builder response) {
+        send(zMessage, response, null, false);
+    }
+
+    /**
+     * Every response tells the client that it may send request protos in a frame of their own and cancels, and which
+     * method indexes it may send in place of names.
+     *
+     * @param message the handler's response message, serialized by the io thread into the response's frame
+     * @param isPayloadFrame whether to send the message in a frame of its own, as the request's came
+     */
+    private void send(ZMsg zMessage, SocketRpcProtos.Response.Builder response, Message message,
+                      boolean isPayloadFrame) {
+        SocketRpcProtos.Response built = response
+                .setAcceptsPayloadFrame(true)
+                .setAcceptsCancel(true)
+                .setMethodTable(methodTable)
+                .build();
+        logger.debug("sending response, proto -> {}, message -> {}", built, message);
+        responseQueue.offer(new Outbound(zMessage, built, message, isPayloadFrame));
+        // null only while start() is registering, which wakes the io thread once it is assigned
+        Reactor.Registration registration = this.registration;
+        if (registration != null) {
+            registration.wakeup();
+        }
     }
 }
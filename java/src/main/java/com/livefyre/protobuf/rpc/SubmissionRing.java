@@ -0,0 +1,82 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock free ring for many producer threads and a single consumer thread.
+ *
+ * Producers claim a sequence with a CAS and then publish into the claimed slot, the consumer takes slots in sequence
+ * order until it finds one that is not published yet. A producer that has claimed but not yet published a slot holds
+ * back the slots after it until it does, so producers must signal the consumer after {@link #offer(Object)}.
+ */
+class SubmissionRing<T> {
+
+    private final AtomicReferenceArray<T> buffer;
+    private final int mask;
+    private final AtomicLong producerIndex = new AtomicLong(0);
+    private final AtomicLong consumerIndex = new AtomicLong(0);
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    SubmissionRing(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long index = producerIndex.get();
+            if (index - consumerIndex.get() >= buffer.length()) {
+                return false;
+            }
+            if (producerIndex.compareAndSet(index, index + 1)) {
+                buffer.lazySet((int) (index & mask), element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Hands up to limit elements to the consumer, in the order they were claimed. Consumer thread only.
+     *
+     * @return the number of elements drained
+     */
+    int drain(Consumer<T> consumer, int limit) {
+        long index = consumerIndex.get();
+        int count = 0;
+        while (count < limit) {
+            int offset = (int) (index & mask);
+            T element = buffer.get(offset);
+            if (element == null) {
+                break;
+            }
+            buffer.lazySet(offset, null);
+            index++;
+            count++;
+            consumerIndex.lazySet(index);
+            consumer.accept(element);
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return producerIndex.get() == consumerIndex.get();
+    }
+}
@@ -0,0 +1,337 @@
+package com.livefyre.protobuf.rpc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hashed timing wheel used to expire requests.
+ *
+ * Scheduling and canceling are O(1) and allocate nothing beyond the timeout itself: both only link the entry onto a
+ * lock free queue, the wheel thread moves entries in and out of their buckets once per tick. Timeouts fire at most
+ * one tick late. A task that throws is logged and does not affect the wheel or any other timeout.
+ *
+ * Tasks run on the wheel thread, so they should only hand work off, e.g. to an executor, or every other timeout
+ * waits for them.
+ *
+ * A single wheel can be shared by any number of channels, see {@link #shared()}.
+ */
+public class TimeoutWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimeoutWheel.class);
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    // upper bound on entries moved into the wheel per tick, keeps a scheduling burst from starving expiration
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static volatile TimeoutWheel sharedWheel = null;
+
+    public interface Timeout {
+        /**
+         * @return false if the timeout already fired or was already canceled
+         */
+        boolean cancel();
+    }
+
+    private static final int ST_PENDING = 0;
+    private static final int ST_CANCELED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private static final class Entry implements Timeout {
+        private static final AtomicIntegerFieldUpdater<Entry> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+        final TimeoutWheel wheel;
+        final Runnable task;
+        final long deadline;
+        volatile int state = ST_PENDING;
+
+        // links for the scheduled and canceled queues
+        volatile Entry nextScheduled;
+        volatile Entry nextCanceled;
+
+        // owned by the wheel thread
+        long remainingRounds;
+        Bucket bucket;
+        Entry prev;
+        Entry next;
+
+        Entry(TimeoutWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_PENDING, ST_CANCELED)) {
+                return false;
+            }
+            wheel.canceled.push(this);
+            return true;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, ST_PENDING, ST_EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.warn("timeout task failed", t);
+            }
+        }
+    }
+
+    /**
+     * Intrusive multi producer, single consumer queue (Vyukov). Producers swap the tail and then link the previous
+     * tail to the new entry, so a consumer can briefly see the queue as shorter than it is; it catches up next tick.
+     */
+    private static abstract class EntryQueue {
+        private final AtomicReference<Entry> tail;
+        private Entry head;
+
+        EntryQueue() {
+            Entry stub = new Entry(null, null, 0);
+            head = stub;
+            tail = new AtomicReference<>(stub);
+        }
+
+        abstract Entry next(Entry entry);
+
+        abstract void link(Entry entry, Entry next);
+
+        void push(Entry entry) {
+            Entry prev = tail.getAndSet(entry);
+            link(prev, entry);
+        }
+
+        Entry poll() {
+            Entry next = next(head);
+            if (next == null) {
+                return null;
+            }
+            // the polled entry stays behind as the new stub. The old stub is unlinked so a long lived timeout does
+            // not keep everything scheduled after it reachable.
+            link(head, null);
+            head = next;
+            return next;
+        }
+    }
+
+    private static final class ScheduledQueue extends EntryQueue {
+        @Override
+        Entry next(Entry entry) {
+            return entry.nextScheduled;
+        }
+
+        @Override
+        void link(Entry entry, Entry next) {
+            entry.nextScheduled = next;
+        }
+    }
+
+    private static final class CanceledQueue extends EntryQueue {
+        @Override
+        Entry next(Entry entry) {
+            return entry.nextCanceled;
+        }
+
+        @Override
+        void link(Entry entry, Entry next) {
+            entry.nextCanceled = next;
+        }
+    }
+
+    private static final class Bucket {
+        Entry head;
+        Entry tail;
+
+        void add(Entry entry) {
+            entry.bucket = this;
+            if (head == null) {
+                head = tail = entry;
+            } else {
+                tail.next = entry;
+                entry.prev = tail;
+                tail = entry;
+            }
+        }
+
+        Entry remove(Entry entry) {
+            Entry next = entry.next;
+            if (entry.prev != null) {
+                entry.prev.next = next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            }
+            if (entry == head) {
+                head = next;
+            }
+            if (entry == tail) {
+                tail = entry.prev;
+            }
+            entry.prev = null;
+            entry.next = null;
+            entry.bucket = null;
+            return next;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final ScheduledQueue scheduled = new ScheduledQueue();
+    private final CanceledQueue canceled = new CanceledQueue();
+    private final Thread worker;
+
+    private volatile boolean isRunning = true;
+    private long tick = 0;
+
+    public TimeoutWheel(long tickMillis, int ticksPerWheel) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+        }
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        if (ticksPerWheel == 1) {
+            size = 1;
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, "protobuf-rpc-timeout-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public TimeoutWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @return the process wide wheel used by channels that are not given one, started on first use and never stopped
+     */
+    public static TimeoutWheel shared() {
+        TimeoutWheel wheel = sharedWheel;
+        if (wheel == null) {
+            synchronized (TimeoutWheel.class) {
+                wheel = sharedWheel;
+                if (wheel == null) {
+                    wheel = sharedWheel = new TimeoutWheel();
+                }
+            }
+        }
+        return wheel;
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Entry entry = new Entry(this, task, System.nanoTime() - startTime + unit.toNanos(delay));
+        if (!isRunning) {
+            entry.state = ST_CANCELED;
+            logger.warn("timeout wheel stopped, dropping timeout");
+            return entry;
+        }
+        scheduled.push(entry);
+        return entry;
+    }
+
+    /**
+     * Stops the wheel thread, pending timeouts never fire. Has no effect on the shared wheel.
+     */
+    public void stop() {
+        if (this == sharedWheel) {
+            return;
+        }
+        isRunning = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (isRunning) {
+            long now = waitForNextTick();
+            if (now < 0) {
+                continue;
+            }
+            removeCanceled();
+            transferScheduled();
+            expire(wheel[(int) (tick & mask)], now);
+            tick++;
+        }
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long now = System.nanoTime() - startTime;
+            long sleepNanos = deadline - now;
+            if (sleepNanos <= 0) {
+                return now;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (!isRunning) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void removeCanceled() {
+        Entry entry;
+        while ((entry = canceled.poll()) != null) {
+            if (entry.bucket != null) {
+                entry.bucket.remove(entry);
+            }
+        }
+    }
+
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Entry entry = scheduled.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entry.state != ST_PENDING) {
+                continue;
+            }
+            long expiryTick = entry.deadline / tickNanos;
+            entry.remainingRounds = (expiryTick - tick) / wheel.length;
+            // already late entries go into the current bucket and fire this tick
+            long ticks = Math.max(expiryTick, tick);
+            wheel[(int) (ticks & mask)].add(entry);
+        }
+    }
+
+    private void expire(Bucket bucket, long now) {
+        Entry entry = bucket.head;
+        while (entry != null) {
+            if (entry.state != ST_PENDING) {
+                entry = bucket.remove(entry);
+            } else if (entry.remainingRounds <= 0 && entry.deadline <= now) {
+                Entry next = bucket.remove(entry);
+                entry.expire();
+                entry = next;
+            } else {
+                if (entry.remainingRounds > 0) {
+                    entry.remainingRounds--;
+                }
+                entry = entry.next;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures round trip latency of sequential calls on an otherwise idle channel.
+ *
+ * Not run by surefire; invoke with main(). Arguments: [numCalls] [pauseMillis]
+ */
+public class ChannelLatencyBenchmark {
+
+    private static class Service extends TestService.Service {
+
+        @Override
+        public void test(RpcController controller, TestService.Request request, RpcCallback<TestService.Response> done) {
+            done.run(TestService.Response.newBuilder().setResponse(request.getQuery()).build());
+        }
+
+        @Override
+        public void testTimeout(RpcController controller, TestService.Request request, RpcCallback<TestService.Response> done) {
+            done.run(TestService.Response.newBuilder().setResponse(request.getQuery()).build());
+        }
+    }
+
+    private static int getAvailablePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numCalls = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long pauseMillis = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        String endpoint = "tcp://localhost:" + getAvailablePort();
+        ExecutorService sThreads = Executors.newFixedThreadPool(1);
+        ExecutorService cThreads = Executors.newFixedThreadPool(1);
+        Server server = Server.create(endpoint, 1, new Service());
+        sThreads.execute(server::start);
+
+        Channel channel = Channel.create(new String[]{endpoint}, 16, cThreads);
+        TestService.Service stub = TestService.Service.newStub(channel);
+        TestService.Request request = TestService.Request.newBuilder().setQuery("ping").build();
+
+        // warm up
+        for (int i = 0; i < 200; i++) {
+            Controller controller = new Controller(1000);
+            stub.test(controller, request, controller.newCallback());
+            controller.newFuture().get();
+        }
+
+        long[] samples = new long[numCalls];
+        for (int i = 0; i < numCalls; i++) {
+            Thread.sleep(pauseMillis);
+            Controller controller = new Controller(1000);
+            long start = System.nanoTime();
+            stub.test(controller, request, controller.newCallback());
+            controller.newFuture().get();
+            samples[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(samples);
+        System.out.printf("calls=%d pause=%dms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms%n",
+                numCalls, pauseMillis,
+                samples[numCalls / 2] / 1e6,
+                samples[(int) (numCalls * 0.90)] / 1e6,
+                samples[(int) (numCalls * 0.99)] / 1e6,
+                samples[numCalls - 1] / 1e6);
+
+        channel.close();
+        server.stop();
+        sThreads.shutdown();
+        cThreads.shutdown();
+        System.exit(0);
+    }
+}
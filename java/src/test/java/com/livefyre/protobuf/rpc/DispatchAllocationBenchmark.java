@@ -0,0 +1,85 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import com.google.protobuf.Service;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures bytes allocated per call to resolve a request's method and parse its request, and to parse its response,
+ * the way the server and channel used to, with a name lookup and a merge through a builder, and the way they do now,
+ * with a dispatch table and the message types' parsers.
+ *
+ * Not run by surefire; invoke with main(). Arguments: [iterations]
+ */
+public class DispatchAllocationBenchmark {
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // keeps results reachable so that the parsing is not optimized away
+    private static Object sink;
+
+    private interface Call {
+        Object run() throws Exception;
+    }
+
+    private static double bytesPerCall(Call call, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            sink = call.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            sink = call.run();
+        }
+        return (double) (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        Service service = TestService.Service.newReflectiveService(new TestService.Service.Interface() {
+            @Override
+            public void test(com.google.protobuf.RpcController controller, TestService.Request request,
+                             com.google.protobuf.RpcCallback<TestService.Response> done) {
+            }
+
+            @Override
+            public void testTimeout(com.google.protobuf.RpcController controller, TestService.Request request,
+                                    com.google.protobuf.RpcCallback<TestService.Response> done) {
+            }
+        });
+        ByteString requestProto = TestService.Request.newBuilder().setQuery("ping").build().toByteString();
+        ByteString responseProto = TestService.Response.newBuilder().setResponse("pong").build().toByteString();
+        Message responsePrototype = TestService.Response.getDefaultInstance();
+
+        Map<String, Descriptors.MethodDescriptor> methods = new HashMap<>();
+        Map<String, Parser<? extends Message>> parsers = new HashMap<>();
+        for (Descriptors.MethodDescriptor method : service.getDescriptorForType().getMethods()) {
+            methods.put(method.getName(), method);
+            parsers.put(method.getName(), service.getRequestPrototype(method).getParserForType());
+        }
+
+        double serverBefore = bytesPerCall(() -> {
+            Descriptors.MethodDescriptor method = service.getDescriptorForType().findMethodByName("Test");
+            return service.getRequestPrototype(method).toBuilder().mergeFrom(requestProto).build();
+        }, iterations);
+        double serverAfter = bytesPerCall(() -> {
+            sink = methods.get("Test");
+            return parsers.get("Test").parseFrom(requestProto);
+        }, iterations);
+        double clientBefore = bytesPerCall(() -> responsePrototype.toBuilder().mergeFrom(responseProto).build(),
+                iterations);
+        double clientAfter = bytesPerCall(() -> responsePrototype.getParserForType().parseFrom(responseProto),
+                iterations);
+
+        System.out.printf("server request: before=%.0fB after=%.0fB per call%n", serverBefore, serverAfter);
+        System.out.printf("client response: before=%.0fB after=%.0fB per call%n", clientBefore, clientAfter);
+    }
+}
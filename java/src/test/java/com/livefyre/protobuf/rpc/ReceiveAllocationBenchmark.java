@@ -0,0 +1,68 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures bytes allocated per response received, from the frame's bytes to the parsed response message, parsing the
+ * envelope as a whole and then its response proto, as the channel used to, or splitting the envelope around the
+ * payload and parsing that straight from the frame. Requests on the server take the same path.
+ *
+ * Not run by surefire; invoke with main(). Arguments: [payloadBytes] [iterations]
+ */
+public class ReceiveAllocationBenchmark {
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // keeps results reachable so that the parsing is not optimized away
+    private static Object sink;
+
+    private interface Receive {
+        Message run(byte[] frame) throws Exception;
+    }
+
+    private static double bytesPerCall(Receive receive, byte[] frame, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            sink = receive.run(frame);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            sink = receive.run(frame);
+        }
+        return (double) (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int payloadBytes = args.length > 0 ? Integer.parseInt(args[0]) : 256 * 1024;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        byte[] text = new byte[payloadBytes];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 26);
+        }
+        byte[] frame = SocketRpcProtos.Response.newBuilder()
+                .setRequestId(1)
+                .setResponseProto(TestService.Response.newBuilder()
+                        .setResponseBytes(ByteString.copyFrom(text)).build().toByteString())
+                .build().toByteArray();
+        Message prototype = TestService.Response.getDefaultInstance();
+
+        double before = bytesPerCall(data -> {
+            SocketRpcProtos.Response response = SocketRpcProtos.Response.parseFrom(data);
+            return prototype.getParserForType().parseFrom(response.getResponseProto());
+        }, frame, iterations);
+        double after = bytesPerCall(data -> {
+            SocketRpcProtos.Response.Builder builder = SocketRpcProtos.Response.newBuilder();
+            Envelope envelope = Envelope.parse(data, SocketRpcProtos.Response.RESPONSE_PROTO_FIELD_NUMBER, builder);
+            sink = builder.build();
+            return envelope.parsePayload(prototype.getParserForType());
+        }, frame, iterations);
+
+        System.out.printf("payload=%dB before=%.0fB after=%.0fB per response%n", payloadBytes, before, after);
+    }
+}
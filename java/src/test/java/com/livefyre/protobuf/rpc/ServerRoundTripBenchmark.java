@@ -0,0 +1,132 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Measures what the server adds to a round trip: latency of sequential calls, then throughput with many calls
+ * outstanding at once, against a server with several workers, and the garbage that sustained load produces on both
+ * sides of the connection.
+ *
+ * Not run by surefire; invoke with main(). Arguments: [numCalls] [concurrency] [numWorkers] [payloadBytes]
+ * [payloadFrames]
+ */
+public class ServerRoundTripBenchmark {
+
+    private static class Service extends TestService.Service {
+
+        @Override
+        public void test(RpcController controller, TestService.Request request, RpcCallback<TestService.Response> done) {
+            done.run(TestService.Response.newBuilder().setResponse(request.getQuery()).build());
+        }
+
+        @Override
+        public void testTimeout(RpcController controller, TestService.Request request, RpcCallback<TestService.Response> done) {
+            done.run(TestService.Response.newBuilder().setResponse(request.getQuery()).build());
+        }
+    }
+
+    private static int getAvailablePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by the threads alive now, client and server alike
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    private static long collections() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numCalls = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int numWorkers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int payloadBytes = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        boolean payloadFrames = args.length <= 4 || Boolean.parseBoolean(args[4]);
+
+        String endpoint = "tcp://localhost:" + getAvailablePort();
+        ExecutorService sThreads = Executors.newFixedThreadPool(1);
+        ExecutorService cThreads = Executors.newFixedThreadPool(1);
+        Server server = Server.create(endpoint, numWorkers, new Service());
+        sThreads.execute(server::start);
+
+        // room for ids of calls whose callback has not run yet, so that slots are never reported stuck
+        Channel channel = Channel.create(new String[]{endpoint}, concurrency * 4, cThreads,
+                new ChannelOptions().setPayloadFrames(payloadFrames));
+        TestService.Service stub = TestService.Service.newStub(channel);
+        char[] query = new char[payloadBytes];
+        Arrays.fill(query, 'x');
+        TestService.Request request = TestService.Request.newBuilder().setQuery(new String(query)).build();
+
+        // warm up
+        for (int i = 0; i < 2000; i++) {
+            Controller controller = new Controller(1000);
+            stub.test(controller, request, controller.newCallback());
+            controller.newFuture().get();
+        }
+
+        int numSequential = numCalls / 10;
+        long[] samples = new long[numSequential];
+        for (int i = 0; i < numSequential; i++) {
+            Controller controller = new Controller(1000);
+            long start = System.nanoTime();
+            stub.test(controller, request, controller.newCallback());
+            controller.newFuture().get();
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        System.out.printf("sequential calls=%d p50=%.3fms p90=%.3fms p99=%.3fms%n",
+                numSequential,
+                samples[numSequential / 2] / 1e6,
+                samples[(int) (numSequential * 0.90)] / 1e6,
+                samples[(int) (numSequential * 0.99)] / 1e6);
+
+        Semaphore outstanding = new Semaphore(concurrency);
+        long allocatedBefore = allocatedBytes();
+        long collectionsBefore = collections();
+        long start = System.nanoTime();
+        for (int i = 0; i < numCalls; i++) {
+            outstanding.acquire();
+            Controller controller = new Controller(5000);
+            stub.test(controller, request, response -> outstanding.release());
+        }
+        outstanding.acquire(concurrency);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long collections = collections() - collectionsBefore;
+        System.out.printf("concurrent calls=%d concurrency=%d workers=%d payload=%dB throughput=%.0f/s%n",
+                numCalls, concurrency, numWorkers, payloadBytes, numCalls / (elapsed / 1e9));
+        System.out.printf("allocated=%.0fB/call gcs=%d (%.1f/10k calls)%n",
+                (double) allocated / numCalls, collections, collections * 10000.0 / numCalls);
+
+        channel.close();
+        server.stop();
+        sThreads.shutdown();
+        cThreads.shutdown();
+        System.exit(0);
+    }
+}
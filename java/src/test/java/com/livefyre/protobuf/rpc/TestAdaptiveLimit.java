@@ -0,0 +1,89 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestAdaptiveLimit {
+
+    private static final long SERVICE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * A server that works on capacity requests at a time and queues the rest, driven by a client that always has
+     * as many requests in flight as the limit allows.
+     */
+    private static class SlowServer {
+        final Random random = new Random(42);
+        final AdaptiveLimit limit;
+        long now = 0;
+
+        SlowServer(AdaptiveLimit limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * @return the average limit over the second half of the run, once it has settled
+         */
+        double run(int capacity, int samples) {
+            double settled = 0;
+            for (int i = 0; i < samples; i++) {
+                int inFlight = limit.getLimit();
+                if (i >= samples / 2) {
+                    settled += inFlight;
+                }
+                double queueing = Math.max(1.0, (double) inFlight / capacity);
+                long rtt = (long) (SERVICE_NANOS * queueing * (1.0 + 0.1 * random.nextDouble()));
+                now += rtt / inFlight;
+                limit.onResponse(rtt, inFlight, now);
+            }
+            return settled / (samples - samples / 2);
+        }
+    }
+
+    @Test
+    public void testConvergesToServerCapacity() {
+        AtomicInteger published = new AtomicInteger(0);
+        AdaptiveLimit limit = new AdaptiveLimit(1, 500, 2.0, 0.9, published::set);
+        SlowServer server = new SlowServer(limit);
+
+        // queueing up to twice the capacity is what the tolerance allows for
+        double settled = server.run(20, 50000);
+        assertTrue("limit -> " + settled, settled >= 20 && settled <= 40);
+        assertEquals(limit.getLimit(), published.get());
+        assertTrue(limit.getIncreases() > 0);
+        assertTrue(limit.getDecreases() > 0);
+
+        // the server slows down, e.g. half its workers are stuck
+        settled = server.run(5, 50000);
+        assertTrue("limit -> " + settled, settled >= 5 && settled <= 10);
+
+        // and recovers
+        settled = server.run(20, 50000);
+        assertTrue("limit -> " + settled, settled >= 20 && settled <= 40);
+    }
+
+    @Test
+    public void testStaysWithinBounds() {
+        AdaptiveLimit limit = new AdaptiveLimit(2, 8, 2.0, 0.9, l -> {});
+        assertEquals(2, limit.getLimit());
+        assertEquals(8, new SlowServer(limit).run(100, 10000), 0.5);
+        for (int i = 0; i < 100; i++) {
+            limit.onDrop(TimeUnit.SECONDS.toNanos(100 + i));
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void testDoesNotGrowWhenIdle() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 100, 2.0, 0.9, l -> {});
+        for (int i = 0; i < 1000; i++) {
+            limit.onResponse(SERVICE_NANOS, 1, i * SERVICE_NANOS);
+        }
+        assertTrue("limit -> " + limit.getLimit(), limit.getLimit() <= 2);
+    }
+}
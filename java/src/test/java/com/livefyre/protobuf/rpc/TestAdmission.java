@@ -0,0 +1,125 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestAdmission {
+
+    @Test
+    public void testLimit() {
+        Admission admission = new Admission(2, 0);
+        assertTrue(admission.tryAcquire());
+        assertTrue(admission.tryAcquire());
+        assertFalse(admission.tryAcquire());
+        admission.release();
+        assertTrue(admission.tryAcquire());
+        assertEquals(2, admission.getInFlight());
+    }
+
+    @Test
+    public void testAcquireWaitsForRelease() throws Exception {
+        Admission admission = new Admission(1, 0);
+        assertTrue(admission.tryAcquire());
+        CompletableFuture<Boolean> acquired = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.acquire(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(acquired.isDone());
+        admission.release();
+        assertTrue(acquired.get(1, TimeUnit.SECONDS));
+        assertEquals(1, admission.getInFlight());
+    }
+
+    @Test
+    public void testAcquireWaitsForHigherLimit() throws Exception {
+        Admission admission = new Admission(1, 0);
+        assertTrue(admission.tryAcquire());
+        CompletableFuture<Boolean> acquired = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.acquire(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        });
+        Thread.sleep(50);
+        admission.setLimit(2);
+        assertTrue(acquired.get(1, TimeUnit.SECONDS));
+        assertEquals(2, admission.getInFlight());
+    }
+
+    @Test
+    public void testAcquireTimesOut() throws Exception {
+        Admission admission = new Admission(1, 0);
+        assertTrue(admission.tryAcquire());
+        long start = System.nanoTime();
+        assertFalse(admission.acquire(start + TimeUnit.MILLISECONDS.toNanos(50)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, admission.getInFlight());
+    }
+
+    @Test
+    public void testCloseWakesAcquire() throws Exception {
+        Admission admission = new Admission(1, 0);
+        assertTrue(admission.tryAcquire());
+        CompletableFuture<Boolean> acquired = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.acquire(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                return true;
+            }
+        });
+        Thread.sleep(50);
+        admission.close();
+        assertFalse(acquired.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDeferredRunsOnRelease() {
+        Admission admission = new Admission(1, 1);
+        AtomicInteger admitted = new AtomicInteger(0);
+        assertTrue(admission.tryAcquire());
+        assertTrue(admission.defer(admitted::incrementAndGet));
+        assertFalse(admission.defer(admitted::incrementAndGet));
+        assertEquals(0, admitted.get());
+        assertEquals(1, admission.getQueued());
+
+        admission.release();
+        assertEquals(1, admitted.get());
+        assertEquals(0, admission.getQueued());
+        // the continuation holds the permit
+        assertEquals(1, admission.getInFlight());
+    }
+
+    @Test
+    public void testDeferredRunsRightAwayWithCapacity() {
+        Admission admission = new Admission(1, 1);
+        AtomicInteger admitted = new AtomicInteger(0);
+        assertTrue(admission.defer(admitted::incrementAndGet));
+        assertEquals(1, admitted.get());
+    }
+
+    @Test
+    public void testFlushWaiters() {
+        Admission admission = new Admission(1, 2);
+        AtomicInteger flushed = new AtomicInteger(0);
+        assertTrue(admission.tryAcquire());
+        admission.defer(() -> {
+            flushed.incrementAndGet();
+            admission.release();
+        });
+        admission.flushWaiters();
+        assertEquals(1, flushed.get());
+        assertEquals(1, admission.getInFlight());
+    }
+}
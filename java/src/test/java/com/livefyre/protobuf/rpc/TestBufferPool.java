@@ -0,0 +1,48 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestBufferPool {
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(1);
+        assertEquals(256, pool.acquire(1).length);
+        assertEquals(256, pool.acquire(256).length);
+        assertEquals(512, pool.acquire(257).length);
+        assertEquals(1 << 22, pool.acquire(1 << 22).length);
+        // too large to pool
+        assertEquals((1 << 22) + 1, pool.acquire((1 << 22) + 1).length);
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(1);
+        byte[] buffer = pool.acquire(1000);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(600));
+        assertEquals(1, pool.getAllocations());
+        // a class holds at most buffersPerClass
+        byte[] second = pool.acquire(1000);
+        pool.release(buffer);
+        pool.release(second);
+        assertSame(buffer, pool.acquire(1000));
+        assertNotSame(second, pool.acquire(1000));
+        assertEquals(3, pool.getAllocations());
+    }
+
+    @Test
+    public void testForeignBuffersAreNotKept() {
+        BufferPool pool = new BufferPool(1);
+        byte[] odd = new byte[1000];
+        pool.release(odd);
+        assertNotSame(odd, pool.acquire(1000));
+        byte[] large = pool.acquire((1 << 22) + 1);
+        pool.release(large);
+        assertNotSame(large, pool.acquire((1 << 22) + 1));
+    }
+}
@@ -0,0 +1,1099 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZContext;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestChannel {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestChannel.class);
+
+    private Client client;
+
+    private ExecutorService cThreads;
+    // runs every server a test starts, see startServer
+    private ExecutorService sThreads;
+    private final List<Server> servers = new ArrayList<>();
+
+    private String endpoint;
+
+    private class Service extends TestService.Service {
+
+        @Override
+        public void test(RpcController controller, TestService.Request request, RpcCallback<TestService.Response> done) {
+            TestService.Response.Builder response = TestService.Response.newBuilder().setResponse(request.getQuery());
+            done.run(response.build());
+        }
+
+        @Override
+        public void testTimeout(RpcController controller, TestService.Request request, RpcCallback<TestService.Response> done) {
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            TestService.Response.Builder response = TestService.Response.newBuilder().setResponse(request.getQuery());
+            done.run(response.build());
+        }
+    }
+
+    private class Client {
+
+        private String[] endpoints = null;
+        private ExecutorService pool = null;
+        private int concurrency = 0;
+        private int timeout = 0;
+        private ChannelOptions options = new ChannelOptions();
+
+        private Channel channel = null;
+        private TestService.Service service = null;
+
+        Client(String[] endpoints, int concurrency, ExecutorService pool, int timeout) {
+            this.endpoints = endpoints;
+            this.concurrency = concurrency;
+            this.pool = pool;
+            this.timeout = timeout;
+        }
+
+        Client(String[] endpoints, int concurrency, ExecutorService pool, int timeout, ChannelOptions options) {
+            this(endpoints, concurrency, pool, timeout);
+            this.options = options;
+        }
+
+        void start() {
+            channel = Channel.create(endpoints, concurrency, pool, options);
+            if (channel != null) {
+                service = TestService.Service.newStub(channel);
+            }
+        }
+
+        void stop() {
+            channel.close();
+        }
+
+        Future<TestService.Response> test(TestService.Request request) {
+            Controller controller = new Controller(timeout);
+            service.test(controller, request, controller.newCallback());
+            return controller.newFuture();
+        }
+
+        Future<TestService.Response> testTimeout(TestService.Request request) {
+            Controller controller = new Controller(timeout);
+            service.testTimeout(controller, request, controller.newCallback());
+            return controller.newFuture();
+        }
+    }
+
+    /**
+     * Answers its first request like a current server, saying what it takes in the response, and the rest like a
+     * server rolled back since, which takes the last frame for the Request and looks methods up by name.
+     */
+    private static class RolledBackServer implements Runnable {
+
+        private final String address;
+        private final SocketRpcProtos.Response.Builder firstResponse;
+        private final AtomicInteger requests = new AtomicInteger(0);
+        private volatile boolean stopped = false;
+
+        RolledBackServer(String address, SocketRpcProtos.Response.Builder firstResponse) {
+            this.address = address;
+            this.firstResponse = firstResponse;
+        }
+
+        @Override
+        public void run() {
+            try (ZContext context = new ZContext()) {
+                ZMQ.Socket socket = context.createSocket(ZMQ.ROUTER);
+                socket.setReceiveTimeOut(50);
+                socket.bind(address);
+                while (!stopped) {
+                    ZMsg message = ZMsg.recvMsg(socket);
+                    if (message == null) {
+                        continue;
+                    }
+                    ZFrame identity = message.pop();
+                    SocketRpcProtos.Response response = respond(message.getLast().getData());
+                    socket.send(identity.getData(), ZMQ.SNDMORE);
+                    socket.send(new byte[0], ZMQ.SNDMORE);
+                    socket.send(response.toByteArray(), 0);
+                }
+            }
+        }
+
+        private SocketRpcProtos.Response respond(byte[] content) {
+            SocketRpcProtos.Request request;
+            try {
+                request = SocketRpcProtos.Request.parseFrom(content);
+            } catch (InvalidProtocolBufferException e) {
+                requests.incrementAndGet();
+                return SocketRpcProtos.Response.newBuilder()
+                        .setErrorCode(SocketRpcProtos.ErrorReason.INVALID_REQUEST_PROTO).build();
+            }
+            SocketRpcProtos.Response.Builder response = requests.incrementAndGet() == 1
+                    ? firstResponse.clone()
+                    : SocketRpcProtos.Response.newBuilder();
+            response.setRequestId(request.getId());
+            if (request.getMethodName().isEmpty()) {
+                return response.setErrorCode(SocketRpcProtos.ErrorReason.METHOD_NOT_FOUND).build();
+            }
+            TestService.Request testRequest;
+            try {
+                testRequest = TestService.Request.parseFrom(request.getRequestProto());
+            } catch (InvalidProtocolBufferException e) {
+                return response.setErrorCode(SocketRpcProtos.ErrorReason.BAD_REQUEST_PROTO).build();
+            }
+            return response.setResponseProto(TestService.Response.newBuilder().setResponse(testRequest.getQuery())
+                    .build().toByteString()).build();
+        }
+
+        int getRequests() {
+            return requests.get();
+        }
+
+        void stop() {
+            stopped = true;
+        }
+    }
+
+    private static int getAvailablePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return 9999;
+    }
+
+    private static String newEndpoint() {
+        int port = TestChannel.getAvailablePort();
+        logger.info("using port -> {}", port);
+        return "tcp://localhost:" + port;
+    }
+
+    /**
+     * Starts a server with a single handler thread on a port of its own, stopped after the test.
+     *
+     * @return its endpoint
+     */
+    private String startServer(Service service) {
+        String address = newEndpoint();
+        startServer(address, 1, service, null);
+        return address;
+    }
+
+    private Server startServer(String address, int numConcurrency, Service service,
+                               CompressionPolicy compressionPolicy) {
+        Server server = Server.create(address, numConcurrency, service, compressionPolicy);
+        servers.add(server);
+        sThreads.execute(server::start);
+        return server;
+    }
+
+    @Before
+    public void setUp(){
+        sThreads = Executors.newCachedThreadPool();
+        cThreads = Executors.newFixedThreadPool(1);
+
+        endpoint = startServer(new Service());
+
+        client = new Client(new String[]{endpoint}, 1, cThreads, 2000);
+        client.start();
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+        for (Server server : servers) {
+            server.stop();
+        }
+        sThreads.shutdown();
+    }
+
+    @Test
+    public void testTimeoutCompletesOnResponsePool() throws Exception {
+        Thread pooled = cThreads.submit(Thread::currentThread).get();
+        AtomicReference<Thread> completedOn = new AtomicReference<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        Controller controller = new Controller(200);
+        client.service.testTimeout(controller, TestService.Request.newBuilder().setQuery("foo").build(), response -> {
+            completedOn.set(Thread.currentThread());
+            completed.countDown();
+        });
+        assertTrue(completed.await(2, TimeUnit.SECONDS));
+        assertTrue(controller.failed());
+        // rather than the wheel thread, which other timeouts wait on
+        assertEquals(pooled, completedOn.get());
+    }
+
+    @Test(expected = Exceptions.OverloadedException.class)
+    public void testFailFastWhenSaturated() throws Exception {
+        Client saturated = new Client(new String[]{endpoint}, 1, cThreads, 2000,
+                new ChannelOptions().setAdmissionPolicy(ChannelOptions.AdmissionPolicy.FAIL_FAST));
+        saturated.start();
+        TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+        try {
+            saturated.testTimeout(request);
+            saturated.test(request).get();
+        } catch (ExecutionException e) {
+            throw Exceptions.getCause(e);
+        } finally {
+            saturated.stop();
+        }
+    }
+
+    @Test
+    public void testQueueWhenSaturated() throws Exception {
+        Client queueing = new Client(new String[]{endpoint}, 1, cThreads, 2000,
+                new ChannelOptions().setAdmissionPolicy(ChannelOptions.AdmissionPolicy.QUEUE));
+        queueing.start();
+        try {
+            Future<TestService.Response> first = queueing.test(TestService.Request.newBuilder().setQuery("foo").build());
+            Future<TestService.Response> second = queueing.test(TestService.Request.newBuilder().setQuery("bar").build());
+            assertEquals("foo", first.get().getResponse());
+            assertEquals("bar", second.get().getResponse());
+            assertEquals(0, queueing.channel.getStats().getInFlight());
+        } finally {
+            queueing.stop();
+        }
+    }
+
+    @Test
+    public void testQueuedCallKeepsItsDeadline() throws Exception {
+        Client queueing = new Client(new String[]{endpoint}, 1, cThreads, 300,
+                new ChannelOptions().setAdmissionPolicy(ChannelOptions.AdmissionPolicy.QUEUE));
+        queueing.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            // holds the only permit until it times out, 200ms into the second call's timeout
+            Future<TestService.Response> first = queueing.testTimeout(request);
+            Thread.sleep(100);
+            long start = System.nanoTime();
+            Future<TestService.Response> second = queueing.testTimeout(request);
+            try {
+                second.get();
+                fail("the queued call should have timed out");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.TimeoutException);
+            }
+            // its time in the queue counts against its timeout, the wheel fires at most a tick late, and the rest is
+            // slack for the test's threads
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("elapsed -> " + elapsedMillis + "ms",
+                    elapsedMillis < 300 + TimeoutWheel.DEFAULT_TICK_MILLIS + 40);
+            try {
+                first.get();
+                fail("the first call should have timed out");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.TimeoutException);
+            }
+        } finally {
+            queueing.stop();
+        }
+    }
+
+    @Test
+    public void testMultipleLanes() throws Exception {
+        Client striped = new Client(new String[]{endpoint}, 8, cThreads, 2000, new ChannelOptions().setNumLanes(3));
+        striped.start();
+        try {
+            List<Future<TestService.Response>> futures = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                futures.add(striped.test(TestService.Request.newBuilder().setQuery("foo" + i).build()));
+            }
+            for (int i = 0; i < 30; i++) {
+                assertEquals("foo" + i, futures.get(i).get().getResponse());
+            }
+            assertEquals(30, striped.channel.getStats().getResponses());
+        } finally {
+            striped.stop();
+        }
+    }
+
+    @Test
+    public void testPayloadFrames() throws Exception {
+        TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+        EndpointStats stats = client.channel.getStats().getEndpoints().get(0);
+        // the first request goes out whole, its response says the server takes the request proto on its own
+        assertFalse(stats.isAcceptsPayloadFrame());
+        assertEquals("foo", client.test(request).get().getResponse());
+        assertTrue(stats.isAcceptsPayloadFrame());
+        assertEquals("foo", client.test(request).get().getResponse());
+
+        Client whole = new Client(new String[]{endpoint}, 1, cThreads, 2000,
+                new ChannelOptions().setPayloadFrames(false));
+        whole.start();
+        try {
+            assertEquals("foo", whole.test(request).get().getResponse());
+            assertEquals("foo", whole.test(request).get().getResponse());
+        } finally {
+            whole.stop();
+        }
+    }
+
+    @Test
+    public void testPayloadFramesAfterRollback() throws Exception {
+        RolledBackServer rolledBack = new RolledBackServer(newEndpoint(),
+                SocketRpcProtos.Response.newBuilder().setAcceptsPayloadFrame(true));
+        sThreads.execute(rolledBack);
+        Client split = new Client(new String[]{rolledBack.address}, 1, cThreads, 2000);
+        split.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            EndpointStats stats = split.channel.getStats().getEndpoints().get(0);
+            assertEquals("foo", split.test(request).get().getResponse());
+            assertTrue(stats.isAcceptsPayloadFrame());
+            // sent split, rejected, and sent again whole
+            assertEquals("foo", split.test(request).get().getResponse());
+            assertFalse(stats.isAcceptsPayloadFrame());
+            assertEquals(3, rolledBack.getRequests());
+            assertEquals("foo", split.test(request).get().getResponse());
+            assertEquals(4, rolledBack.getRequests());
+        } finally {
+            split.stop();
+            rolledBack.stop();
+        }
+    }
+
+    @Test
+    public void testMethodIndex() throws Exception {
+        TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+        EndpointStats stats = client.channel.getStats().getEndpoints().get(0);
+        // named in full until the server says it shares the client's method table
+        assertEquals(0, stats.getMethodTable());
+        assertEquals("foo", client.test(request).get().getResponse());
+        assertEquals(MethodTable.fingerprint(TestService.Service.getDescriptor()), stats.getMethodTable());
+        assertEquals("foo", client.test(request).get().getResponse());
+    }
+
+    @Test
+    public void testMethodIndexAfterRollback() throws Exception {
+        RolledBackServer rolledBack = new RolledBackServer(newEndpoint(), SocketRpcProtos.Response.newBuilder()
+                .setMethodTable(MethodTable.fingerprint(TestService.Service.getDescriptor())));
+        sThreads.execute(rolledBack);
+        Client indexed = new Client(new String[]{rolledBack.address}, 1, cThreads, 2000);
+        indexed.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            EndpointStats stats = indexed.channel.getStats().getEndpoints().get(0);
+            assertEquals("foo", indexed.test(request).get().getResponse());
+            assertEquals(MethodTable.fingerprint(TestService.Service.getDescriptor()), stats.getMethodTable());
+            // sent by index, not found, and sent again by name
+            assertEquals("foo", indexed.test(request).get().getResponse());
+            assertEquals(0, stats.getMethodTable());
+            assertEquals(3, rolledBack.getRequests());
+            assertEquals("foo", indexed.test(request).get().getResponse());
+            assertEquals(4, rolledBack.getRequests());
+        } finally {
+            indexed.stop();
+            rolledBack.stop();
+        }
+    }
+
+    @Test
+    public void testSharedReactor() throws Exception {
+        Reactor reactor = new Reactor(1);
+        ChannelOptions options = new ChannelOptions().setReactor(reactor).setNumLanes(2);
+        Client first = new Client(new String[]{endpoint}, 1, cThreads, 2000, options);
+        Client second = new Client(new String[]{endpoint}, 1, cThreads, 2000, options);
+        first.start();
+        second.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            assertEquals("foo", first.test(request).get().getResponse());
+            assertEquals("foo", second.test(request).get().getResponse());
+            assertEquals(4, reactor.getNumRegistrations());
+
+            // closing one channel leaves the others on the reactor running
+            first.stop();
+            assertEquals("foo", second.test(request).get().getResponse());
+            assertEquals(2, reactor.getNumRegistrations());
+            assertEquals(1, first.channel.getStats().getResponses());
+            assertEquals(2, second.channel.getStats().getResponses());
+        } finally {
+            second.stop();
+            reactor.close();
+        }
+    }
+
+    @Test
+    public void testAvoidsSlowEndpoint() throws Exception {
+        String slowEndpoint = startServer(new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.test(controller, request, done);
+            }
+        });
+        Client balanced = new Client(new String[]{endpoint, slowEndpoint}, 4, cThreads, 2000);
+        balanced.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            // so that the fast endpoint's first sample is not its server starting up
+            client.test(request).get();
+            for (int i = 0; i < 50; i++) {
+                assertEquals("foo", balanced.test(request).get().getResponse());
+            }
+            List<EndpointStats> endpoints = balanced.channel.getStats().getEndpoints();
+            assertEquals(slowEndpoint, endpoints.get(1).getAddress());
+            assertTrue("fast -> " + endpoints.get(0).getResponses() + ", slow -> " + endpoints.get(1).getResponses(),
+                    endpoints.get(1).getResponses() <= 5);
+            assertEquals(0, endpoints.get(0).getOutstanding() + endpoints.get(1).getOutstanding());
+        } finally {
+            balanced.stop();
+        }
+    }
+
+    @Test
+    public void testSlowEndpointLimitFalls() throws Exception {
+        AtomicBoolean stalled = new AtomicBoolean(false);
+        String slowEndpoint = newEndpoint();
+        startServer(slowEndpoint, 4, new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                if (stalled.get()) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.test(controller, request, done);
+            }
+        }, null);
+        // a tolerance high enough that only the stalled endpoint's timeouts cut a limit
+        ChannelOptions options = new ChannelOptions()
+                .setLoadBalancing(ChannelOptions.LoadBalancing.ROUND_ROBIN)
+                .setAdaptiveLimit(true)
+                .setMinConcurrentRequests(1)
+                .setLatencyTolerance(1000);
+        Client limited = new Client(new String[]{endpoint, slowEndpoint}, 8, cThreads, 2000, options);
+        limited.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            // enough calls at a time for both limits to grow
+            for (int i = 0; i < 30; i++) {
+                List<Future<TestService.Response>> futures = new ArrayList<>();
+                for (int j = 0; j < 8; j++) {
+                    futures.add(limited.test(request));
+                }
+                for (Future<TestService.Response> future : futures) {
+                    assertEquals("foo", future.get().getResponse());
+                }
+            }
+            List<EndpointStats> endpoints = limited.channel.getStats().getEndpoints();
+            int slowLimit = endpoints.get(1).getLimit();
+            assertTrue(slowLimit >= 2);
+
+            stalled.set(true);
+            List<Future<TestService.Response>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Controller controller = new Controller(200);
+                limited.service.test(controller, request, controller.newCallback());
+                futures.add(controller.newFuture());
+            }
+            for (Future<TestService.Response> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    assertTrue(Exceptions.getCause(e) instanceof Exceptions.TimeoutException);
+                }
+            }
+            assertTrue(endpoints.get(1).getTimeouts() > 0);
+            assertTrue("slow -> " + endpoints.get(1).getLimit(), endpoints.get(1).getLimit() < slowLimit);
+            assertTrue(endpoints.get(1).getLimitDecreases() > 0);
+            assertEquals(0, endpoints.get(0).getLimitDecreases());
+            assertEquals(0, endpoints.get(0).getTimeouts());
+        } finally {
+            limited.stop();
+        }
+    }
+
+    @Test
+    public void testHedgeToFastEndpoint() throws Exception {
+        String slowEndpoint = startServer(new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.test(controller, request, done);
+            }
+        });
+        // round robin sends the first call to the slow endpoint, the hedge to the other
+        ChannelOptions options = new ChannelOptions()
+                .setLoadBalancing(ChannelOptions.LoadBalancing.ROUND_ROBIN)
+                .setHedgePolicy(new HedgePolicy(TestService.Service.getDescriptor().findMethodByName("Test")
+                        .getFullName()).setDelayMillis(20).setBudgetRatio(1.0));
+        Client hedged = new Client(new String[]{slowEndpoint, endpoint}, 4, cThreads, 2000, options);
+        hedged.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            long start = System.nanoTime();
+            assertEquals("foo", hedged.test(request).get().getResponse());
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+            assertEquals(1, hedged.channel.getStats().getHedges());
+            assertEquals(1, hedged.channel.getStats().getHedgeWins());
+            // the losing copy is no longer outstanding
+            assertEquals(0, hedged.channel.getStats().getEndpoints().get(0).getOutstanding());
+        } finally {
+            hedged.stop();
+        }
+    }
+
+    private String startFailingServer() {
+        return startServer(new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                throw new IllegalStateException("deploying");
+            }
+        });
+    }
+
+    @Test
+    public void testRetryOnOtherEndpoint() throws Exception {
+        String failingEndpoint = startFailingServer();
+        // round robin sends the first attempt to the failing endpoint, the retry to the other
+        ChannelOptions options = new ChannelOptions()
+                .setLoadBalancing(ChannelOptions.LoadBalancing.ROUND_ROBIN)
+                .setRetryPolicy(new RetryPolicy(TestService.Service.getDescriptor().findMethodByName("Test")
+                        .getFullName()).setBudgetRatio(1.0));
+        Client retrying = new Client(new String[]{failingEndpoint, endpoint}, 4, cThreads, 2000, options);
+        retrying.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            assertEquals("foo", retrying.test(request).get().getResponse());
+            assertEquals(1, retrying.channel.getStats().getRetries());
+            assertEquals(1, retrying.channel.getStats().getEndpoints().get(0).getResponses());
+        } finally {
+            retrying.stop();
+        }
+    }
+
+    @Test
+    public void testRetriesKeepTheCallsDeadline() throws Exception {
+        String otherEndpoint = startServer(new Service());
+        // every attempt of TestTimeout times out, the first two after 200ms each and the last one at the call's
+        // deadline
+        ChannelOptions options = new ChannelOptions()
+                .setLoadBalancing(ChannelOptions.LoadBalancing.ROUND_ROBIN)
+                .setRetryPolicy(new RetryPolicy(TestService.Service.getDescriptor().findMethodByName("TestTimeout")
+                        .getFullName()).setAttemptTimeoutMillis(200).setBudgetRatio(1.0));
+        Client retrying = new Client(new String[]{endpoint, otherEndpoint}, 4, cThreads, 500, options);
+        retrying.start();
+        try {
+            long start = System.nanoTime();
+            try {
+                retrying.testTimeout(TestService.Request.newBuilder().setQuery("foo").build()).get();
+                fail("every attempt should have timed out");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.TimeoutException);
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("elapsed -> " + elapsedMillis + "ms",
+                    elapsedMillis < 500 + TimeoutWheel.DEFAULT_TICK_MILLIS + 40);
+            assertTrue(retrying.channel.getStats().getRetries() >= 1);
+        } finally {
+            retrying.stop();
+        }
+    }
+
+    @Test
+    public void testHedgedErrorOfMethodNotRetried() throws Exception {
+        String failingEndpoint = startServer(new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("deploying");
+            }
+        });
+        String slowEndpoint = startServer(new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.test(controller, request, done);
+            }
+        });
+        // the first attempt fails while the hedge is out, and only another method is retried, so the call fails
+        // rather than wait for the hedge
+        ChannelOptions options = new ChannelOptions()
+                .setLoadBalancing(ChannelOptions.LoadBalancing.ROUND_ROBIN)
+                .setHedgePolicy(new HedgePolicy(TestService.Service.getDescriptor().findMethodByName("Test")
+                        .getFullName()).setDelayMillis(20).setBudgetRatio(1.0))
+                .setRetryPolicy(new RetryPolicy(TestService.Service.getDescriptor().findMethodByName("TestTimeout")
+                        .getFullName()).setBudgetRatio(1.0));
+        Client hedged = new Client(new String[]{failingEndpoint, slowEndpoint}, 4, cThreads, 2000, options);
+        hedged.start();
+        try {
+            long start = System.nanoTime();
+            try {
+                hedged.test(TestService.Request.newBuilder().setQuery("foo").build()).get();
+                fail("the first attempt's error should have completed the call");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.RpcError);
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(800));
+            assertEquals(1, hedged.channel.getStats().getHedges());
+            assertEquals(0, hedged.channel.getStats().getRetries());
+        } finally {
+            hedged.stop();
+        }
+    }
+
+    @Test(expected = Exceptions.RpcError.class)
+    public void testRetryBudget() throws Exception {
+        String failingEndpoint = startFailingServer();
+        ChannelOptions options = new ChannelOptions()
+                .setLoadBalancing(ChannelOptions.LoadBalancing.ROUND_ROBIN)
+                .setRetryPolicy(new RetryPolicy(TestService.Service.getDescriptor().findMethodByName("Test")
+                        .getFullName()).setBudgetRatio(0.0));
+        Client retrying = new Client(new String[]{failingEndpoint, endpoint}, 4, cThreads, 2000, options);
+        retrying.start();
+        try {
+            retrying.test(TestService.Request.newBuilder().setQuery("foo").build()).get();
+        } catch (ExecutionException e) {
+            assertEquals(0, retrying.channel.getStats().getRetries());
+            assertEquals(1, retrying.channel.getStats().getRetriesDenied());
+            throw Exceptions.getCause(e);
+        } finally {
+            retrying.stop();
+        }
+    }
+
+    @Test
+    public void testEjectsFailingEndpoint() throws Exception {
+        String failingEndpoint = startFailingServer();
+        ChannelOptions options = new ChannelOptions()
+                .setLoadBalancing(ChannelOptions.LoadBalancing.ROUND_ROBIN)
+                .setCircuitBreakerPolicy(new CircuitBreakerPolicy().setConsecutiveFailures(2)
+                        .setEjectionMillis(60000));
+        Client breaking = new Client(new String[]{failingEndpoint, endpoint}, 4, cThreads, 2000, options);
+        breaking.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            int failures = 0;
+            for (int i = 0; i < 10; i++) {
+                try {
+                    breaking.test(request).get();
+                } catch (ExecutionException e) {
+                    failures++;
+                }
+            }
+            assertEquals(2, failures);
+            EndpointStats failing = breaking.channel.getStats().getEndpoints().get(0);
+            assertEquals(EndpointStats.BreakerState.OPEN, failing.getBreakerState());
+            assertEquals(1, failing.getEjections());
+            assertEquals(1, breaking.channel.getStats().getEjectedEndpoints());
+        } finally {
+            breaking.stop();
+        }
+    }
+
+    @Test
+    public void testSetFailedDoesNotEject() throws Exception {
+        String rejectingEndpoint = startServer(new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                controller.setFailed("no such document");
+                done.run(null);
+            }
+        });
+        ChannelOptions options = new ChannelOptions()
+                .setLoadBalancing(ChannelOptions.LoadBalancing.ROUND_ROBIN)
+                .setCircuitBreakerPolicy(new CircuitBreakerPolicy().setConsecutiveFailures(2)
+                        .setEjectionMillis(60000));
+        Client breaking = new Client(new String[]{rejectingEndpoint, endpoint}, 4, cThreads, 2000, options);
+        breaking.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            int failures = 0;
+            for (int i = 0; i < 10; i++) {
+                try {
+                    breaking.test(request).get();
+                } catch (ExecutionException e) {
+                    assertTrue(Exceptions.getCause(e) instanceof Exceptions.RpcFailedError);
+                    failures++;
+                }
+            }
+            // every other call goes to the endpoint that keeps answering with errors, which is not ejected for it
+            assertEquals(5, failures);
+            EndpointStats rejecting = breaking.channel.getStats().getEndpoints().get(0);
+            assertEquals(EndpointStats.BreakerState.CLOSED, rejecting.getBreakerState());
+            assertEquals(0, rejecting.getEjections());
+        } finally {
+            breaking.stop();
+        }
+    }
+
+    @Test
+    public void testCachedResponse() throws Exception {
+        ChannelOptions options = new ChannelOptions().setCachePolicy(new CachePolicy()
+                .setTtl(TestService.Service.getDescriptor().findMethodByName("Test").getFullName(), 60000));
+        Client caching = new Client(new String[]{endpoint}, 4, cThreads, 2000, options);
+        caching.start();
+        try {
+            TestService.Request foo = TestService.Request.newBuilder().setQuery("foo").build();
+            TestService.Request bar = TestService.Request.newBuilder().setQuery("bar").build();
+            assertEquals("foo", caching.test(foo).get().getResponse());
+            assertEquals("foo", caching.test(foo).get().getResponse());
+            assertEquals("bar", caching.test(bar).get().getResponse());
+            ChannelStats stats = caching.channel.getStats();
+            assertEquals(1, stats.getCacheHits());
+            assertEquals(2, stats.getCacheMisses());
+            assertEquals(2, stats.getCacheEntries());
+            assertEquals(2, stats.getResponses());
+        } finally {
+            caching.stop();
+        }
+    }
+
+    @Test
+    public void testCoalescedCalls() throws Exception {
+        ChannelOptions options = new ChannelOptions().setCoalescedMethods(
+                TestService.Service.getDescriptor().findMethodByName("TestTimeout").getFullName());
+        Client coalescing = new Client(new String[]{endpoint}, 4, cThreads, 5000, options);
+        coalescing.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            Future<TestService.Response> first = coalescing.testTimeout(request);
+            Future<TestService.Response> second = coalescing.testTimeout(request);
+            // waiters time out and cancel on their own, without affecting the others
+            Controller shortTimeout = new Controller(200);
+            coalescing.service.testTimeout(shortTimeout, request, shortTimeout.newCallback());
+            Controller canceled = new Controller(5000);
+            coalescing.service.testTimeout(canceled, request, canceled.newCallback());
+            canceled.startCancel();
+            try {
+                canceled.newFuture().get();
+                fail("the canceled waiter should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.CanceledException);
+            }
+            try {
+                shortTimeout.newFuture().get();
+                fail("the waiter with the short timeout should have timed out");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.TimeoutException);
+            }
+            assertEquals("foo", first.get().getResponse());
+            assertEquals("foo", second.get().getResponse());
+            ChannelStats stats = coalescing.channel.getStats();
+            assertEquals(3, stats.getCoalesced());
+            assertEquals(1, stats.getEndpoints().get(0).getResponses());
+        } finally {
+            coalescing.stop();
+        }
+    }
+
+    @Test
+    public void testCancelReachesServer() throws Exception {
+        CountDownLatch canceled = new CountDownLatch(2);
+        String cancelingEndpoint = startServer(new Service() {
+            @Override
+            public void testTimeout(RpcController controller, TestService.Request request,
+                                    RpcCallback<TestService.Response> done) {
+                CountDownLatch stopped = new CountDownLatch(1);
+                controller.notifyOnCancel(ignored -> stopped.countDown());
+                try {
+                    if (stopped.await(5, TimeUnit.SECONDS)) {
+                        canceled.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.run(TestService.Response.newBuilder().setResponse(request.getQuery()).build());
+            }
+        });
+        Client canceling = new Client(new String[]{cancelingEndpoint}, 4, cThreads, 200);
+        canceling.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            // servers are only told about cancels once they have said they handle them
+            EndpointStats stats = canceling.channel.getStats().getEndpoints().get(0);
+            assertFalse(stats.isAcceptsCancel());
+            assertEquals("foo", canceling.test(request).get().getResponse());
+            assertTrue(stats.isAcceptsCancel());
+
+            // the first times out, the second is canceled by its caller
+            try {
+                canceling.testTimeout(request).get();
+                fail("the call should have timed out");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.TimeoutException);
+            }
+            Controller controller = new Controller(5000);
+            canceling.service.testTimeout(controller, request, controller.newCallback());
+            Thread.sleep(50);
+            controller.startCancel();
+            try {
+                controller.newFuture().get();
+                fail("the canceled call should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.CanceledException);
+            }
+            assertTrue(canceled.await(2, TimeUnit.SECONDS));
+            assertEquals(2, canceling.channel.getStats().getCancels());
+        } finally {
+            canceling.stop();
+        }
+    }
+
+    @Test
+    public void testNestedCallInheritsDeadline() throws Exception {
+        AtomicReference<Exception> nestedError = new AtomicReference<>();
+        CountDownLatch nestedDone = new CountDownLatch(1);
+        ExecutorService downstreamThreads = Executors.newFixedThreadPool(1);
+        // the nested call would wait 5s on its own, but its caller only waits 300ms
+        Client downstream = new Client(new String[]{endpoint}, 1, downstreamThreads, 5000);
+        downstream.start();
+        String middleEndpoint = startServer(new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                long start = System.nanoTime();
+                try {
+                    downstream.testTimeout(request).get();
+                } catch (Exception e) {
+                    if (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2)) {
+                        nestedError.set(e);
+                    }
+                }
+                nestedDone.countDown();
+                done.run(TestService.Response.newBuilder().setResponse(request.getQuery()).build());
+            }
+        });
+        Client caller = new Client(new String[]{middleEndpoint}, 1, cThreads, 300);
+        caller.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            try {
+                caller.test(request).get();
+                fail("the call should have timed out");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.TimeoutException);
+            }
+            assertTrue(nestedDone.await(2, TimeUnit.SECONDS));
+            assertTrue(nestedError.get() instanceof ExecutionException);
+            assertTrue(Exceptions.getCause(nestedError.get()) instanceof Exceptions.TimeoutException);
+        } finally {
+            caller.stop();
+            downstream.stop();
+            downstreamThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncHandlers() throws Exception {
+        ScheduledExecutorService backend = Executors.newSingleThreadScheduledExecutor();
+        String asyncEndpoint = newEndpoint();
+        // a single handler thread, that returns right away and completes each call later from another thread
+        Server asyncServer = startServer(asyncEndpoint, 1, new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                backend.schedule(() -> {
+                    if (request.getQuery().equals("fail")) {
+                        controller.setFailed("failed asynchronously");
+                        done.run(null);
+                    } else {
+                        done.run(TestService.Response.newBuilder().setResponse(request.getQuery()).build());
+                    }
+                }, 100, TimeUnit.MILLISECONDS);
+            }
+        }, null);
+        Client async = new Client(new String[]{asyncEndpoint}, 256, cThreads, 2000);
+        async.start();
+        try {
+            List<Future<TestService.Response>> responses = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < 200; i++) {
+                responses.add(async.test(TestService.Request.newBuilder().setQuery("q" + i).build()));
+            }
+            for (int i = 0; i < 200; i++) {
+                assertEquals("q" + i, responses.get(i).get().getResponse());
+            }
+            // one at a time they would take 20s
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+            try {
+                async.test(TestService.Request.newBuilder().setQuery("fail").build()).get();
+                fail("the handler failed the call");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.RpcFailedError);
+                assertEquals("failed asynchronously", Exceptions.getCause(e).getMessage());
+            }
+            assertEquals(0, asyncServer.getActiveCalls());
+        } finally {
+            async.stop();
+            backend.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        String compressingEndpoint = newEndpoint();
+        Server compressingServer = startServer(compressingEndpoint, 1, new Service(),
+                new CompressionPolicy().setMinBytes(64));
+        Client compressing = new Client(new String[]{compressingEndpoint}, 1, cThreads, 2000,
+                new ChannelOptions().setCompressionPolicy(new CompressionPolicy().setMinBytes(64)));
+        compressing.start();
+        char[] query = new char[4096];
+        for (int i = 0; i < query.length; i++) {
+            query[i] = (char) ('a' + i % 26);
+        }
+        TestService.Request large = TestService.Request.newBuilder().setQuery(new String(query)).build();
+        TestService.Request small = TestService.Request.newBuilder().setQuery("foo").build();
+        try {
+            CompressionStats clientStats = compressing.channel.getStats().getCompression();
+            CompressionStats serverStats = compressingServer.getCompressionStats();
+            // the first request goes out as is, its response comes back compressed and says requests may be too
+            assertEquals(large.getQuery(), compressing.test(large).get().getResponse());
+            assertEquals(0, clientStats.getCompressions());
+            assertEquals(1, clientStats.getDecompressions());
+            assertTrue(compressing.channel.getStats().getEndpoints().get(0).isAcceptsCompression());
+
+            assertEquals(large.getQuery(), compressing.test(large).get().getResponse());
+            assertEquals(1, clientStats.getCompressions());
+            assertTrue(clientStats.getRatio() < 0.1);
+            assertEquals(1, serverStats.getDecompressions());
+            assertEquals(2, serverStats.getCompressions());
+
+            // below the threshold neither side compresses
+            assertEquals("foo", compressing.test(small).get().getResponse());
+            assertEquals(1, clientStats.getCompressions());
+            assertEquals(2, serverStats.getCompressions());
+
+            // peers without a policy get protos as is, and never send compressed ones
+            Client plain = new Client(new String[]{compressingEndpoint}, 1, cThreads, 2000);
+            plain.start();
+            try {
+                assertEquals(large.getQuery(), plain.test(large).get().getResponse());
+                assertEquals(2, serverStats.getCompressions());
+            } finally {
+                plain.stop();
+            }
+            Client toPlain = new Client(new String[]{endpoint}, 1, cThreads, 2000,
+                    new ChannelOptions().setCompressionPolicy(new CompressionPolicy().setMinBytes(64)));
+            toPlain.start();
+            try {
+                assertEquals(large.getQuery(), toPlain.test(large).get().getResponse());
+                assertEquals(large.getQuery(), toPlain.test(large).get().getResponse());
+                assertFalse(toPlain.channel.getStats().getEndpoints().get(0).isAcceptsCompression());
+                assertEquals(0, toPlain.channel.getStats().getCompression().getCompressions());
+            } finally {
+                toPlain.stop();
+            }
+
+            // a response that would decompress past the client's limit fails the call
+            Client limited = new Client(new String[]{compressingEndpoint}, 1, cThreads, 2000,
+                    new ChannelOptions().setCompressionPolicy(new CompressionPolicy().setMinBytes(64)
+                            .setMaxDecompressedBytes(1024)));
+            limited.start();
+            try {
+                limited.test(large).get();
+                fail("the response should have decompressed past the limit");
+            } catch (ExecutionException e) {
+                assertTrue(Exceptions.getCause(e) instanceof Exceptions.BadResponseProtoError);
+            } finally {
+                limited.stop();
+            }
+        } finally {
+            compressing.stop();
+        }
+    }
+
+    @Test
+    public void testSlowCallsDoNotDelayFastOnes() throws Exception {
+        String mixedEndpoint = newEndpoint();
+        startServer(mixedEndpoint, 4, new Service() {
+            @Override
+            public void testTimeout(RpcController controller, TestService.Request request,
+                                    RpcCallback<TestService.Response> done) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.run(TestService.Response.newBuilder().setResponse(request.getQuery()).build());
+            }
+        }, null);
+        Client mixed = new Client(new String[]{mixedEndpoint}, 64, cThreads, 2000);
+        mixed.start();
+        try {
+            TestService.Request request = TestService.Request.newBuilder().setQuery("foo").build();
+            mixed.test(request).get();
+            int numCalls = 300;
+            long[] fast = new long[numCalls];
+            List<Future<TestService.Response>> slow = new ArrayList<>();
+            for (int i = 0; i < numCalls; i++) {
+                if (i % 20 == 0) {
+                    // at most a couple of workers are ever busy with slow calls
+                    slow.add(mixed.testTimeout(request));
+                }
+                long start = System.nanoTime();
+                mixed.test(request).get();
+                fast[i] = System.nanoTime() - start;
+                Thread.sleep(1);
+            }
+            for (Future<TestService.Response> response : slow) {
+                response.get();
+            }
+            Arrays.sort(fast);
+            long p99 = TimeUnit.NANOSECONDS.toMillis(fast[numCalls * 99 / 100]);
+            // requests go to whichever worker is free, so fast ones never queue behind a slow one
+            assertTrue("fast p99 -> " + p99 + "ms", p99 < 100);
+        } finally {
+            mixed.stop();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCircuitBreaker {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static CircuitBreakerPolicy policy() {
+        return new CircuitBreakerPolicy().setConsecutiveFailures(3).setEjectionMillis(100).setMaxEjectionMillis(300);
+    }
+
+    @Test
+    public void testConsecutiveFailuresEject() {
+        CircuitBreaker breaker = new CircuitBreaker("a", policy(), new AtomicInteger(0), 1, 0);
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        breaker.onSuccess(0);
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        assertEquals(EndpointStats.BreakerState.CLOSED, breaker.getState());
+        breaker.onFailure(0);
+        assertEquals(EndpointStats.BreakerState.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(99 * MS));
+        assertEquals(1, breaker.getEjections());
+    }
+
+    @Test
+    public void testProbe() {
+        AtomicInteger ejected = new AtomicInteger(0);
+        CircuitBreaker breaker = new CircuitBreaker("a", policy(), ejected, 1, 0);
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(0);
+        }
+        assertEquals(1, ejected.get());
+        // a single probe once the ejection is over
+        assertTrue(breaker.allowRequest(100 * MS));
+        assertEquals(EndpointStats.BreakerState.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(100 * MS));
+        // a failed probe ejects it for twice as long
+        breaker.onFailure(110 * MS);
+        assertEquals(EndpointStats.BreakerState.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(300 * MS));
+        assertTrue(breaker.allowRequest(310 * MS));
+        breaker.onSuccess(320 * MS);
+        assertEquals(EndpointStats.BreakerState.CLOSED, breaker.getState());
+        assertEquals(0, ejected.get());
+        assertEquals(2, breaker.getEjections());
+    }
+
+    @Test
+    public void testLostProbeIsReplaced() {
+        CircuitBreaker breaker = new CircuitBreaker("a", policy(), new AtomicInteger(0), 1, 0);
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(0);
+        }
+        assertTrue(breaker.allowRequest(100 * MS));
+        assertFalse(breaker.allowRequest(150 * MS));
+        assertTrue(breaker.allowRequest(201 * MS));
+    }
+
+    @Test
+    public void testFailureRate() {
+        CircuitBreakerPolicy policy = policy().setConsecutiveFailures(100).setMinRequests(10).setFailureRate(0.5);
+        CircuitBreaker breaker = new CircuitBreaker("a", policy, new AtomicInteger(0), 1, 0);
+        for (int i = 0; i < 4; i++) {
+            breaker.onSuccess(0);
+            breaker.onFailure(0);
+        }
+        assertEquals(EndpointStats.BreakerState.CLOSED, breaker.getState());
+        breaker.onSuccess(0);
+        breaker.onFailure(0);
+        assertEquals(EndpointStats.BreakerState.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testMaxEjected() {
+        AtomicInteger ejected = new AtomicInteger(0);
+        CircuitBreaker a = new CircuitBreaker("a", policy(), ejected, 1, 0);
+        CircuitBreaker b = new CircuitBreaker("b", policy(), ejected, 1, 0);
+        for (int i = 0; i < 3; i++) {
+            a.onFailure(0);
+            b.onFailure(0);
+        }
+        assertEquals(EndpointStats.BreakerState.OPEN, a.getState());
+        assertEquals(EndpointStats.BreakerState.CLOSED, b.getState());
+    }
+}
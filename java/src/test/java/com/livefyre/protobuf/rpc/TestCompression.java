@@ -0,0 +1,116 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCompression {
+
+    private static byte[] repetitive(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        byte[] data = repetitive(100000);
+        // from an offset, as payloads are compressed and decompressed in place in their frame
+        byte[] framed = new byte[data.length + 10];
+        System.arraycopy(data, 0, framed, 5, data.length);
+        byte[] compressed = codec.compress(framed, 5, data.length);
+        assertTrue(compressed.length < data.length / 10);
+        byte[] compressedFramed = new byte[compressed.length + 3];
+        System.arraycopy(compressed, 0, compressedFramed, 3, compressed.length);
+        assertArrayEquals(data, codec.decompress(compressedFramed, 3, compressed.length, data.length));
+
+        byte[] empty = codec.compress(new byte[0], 0, 0);
+        assertEquals(0, codec.decompress(empty, 0, empty.length, 0).length);
+    }
+
+    @Test
+    public void testDecompressedSizeIsLimited() throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        // a few kilobytes that would inflate to 16MB
+        byte[] bomb = codec.compress(new byte[16 * 1024 * 1024], 0, 16 * 1024 * 1024);
+        assertTrue(bomb.length < 100 * 1024);
+        try {
+            codec.decompress(bomb, 0, bomb.length, 1024 * 1024);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("more than 1048576 bytes"));
+        }
+        // the limit itself is fine
+        byte[] data = repetitive(1000);
+        byte[] compressed = codec.compress(data, 0, data.length);
+        assertArrayEquals(data, codec.decompress(compressed, 0, compressed.length, 1000));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidDeflateData() throws IOException {
+        byte[] data = "not deflate".getBytes(StandardCharsets.UTF_8);
+        new DeflateCodec().decompress(data, 0, data.length, 1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedDeflateData() throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        byte[] compressed = codec.compress(repetitive(1000), 0, 1000);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+        codec.decompress(truncated, 0, truncated.length, 1000);
+    }
+
+    @Test
+    public void testPolicyThresholdAndMethods() {
+        MethodDescriptor test = TestService.Service.getDescriptor().findMethodByName("Test");
+        MethodDescriptor testTimeout = TestService.Service.getDescriptor().findMethodByName("TestTimeout");
+        CompressionPolicy policy = new CompressionPolicy().setMinBytes(100);
+        assertFalse(policy.appliesTo(test, 99));
+        assertTrue(policy.appliesTo(test, 100));
+        assertTrue(policy.appliesTo(testTimeout, 100));
+
+        policy.setMethods(test.getFullName());
+        assertTrue(policy.appliesTo(test, 100));
+        assertFalse(policy.appliesTo(testTimeout, 100));
+    }
+
+    @Test
+    public void testPolicyCodecs() {
+        Codec other = new Codec() {
+            @Override
+            public int getId() {
+                return 7;
+            }
+
+            @Override
+            public byte[] compress(byte[] data, int offset, int length) {
+                return Arrays.copyOfRange(data, offset, offset + length);
+            }
+
+            @Override
+            public byte[] decompress(byte[] data, int offset, int length, int maxLength) {
+                return Arrays.copyOfRange(data, offset, offset + length);
+            }
+        };
+        CompressionPolicy policy = new CompressionPolicy();
+        assertEquals(DeflateCodec.ID, policy.getCodec().getId());
+        assertEquals(null, policy.getCodec(7));
+        policy.setCodec(other);
+        assertEquals(other, policy.getCodec());
+        // still decompresses what peers not yet moved to the new codec send
+        assertEquals(DeflateCodec.ID, policy.getCodec(DeflateCodec.ID).getId());
+        assertEquals(other, policy.getCodec(7));
+    }
+}
@@ -0,0 +1,122 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestEndpointSelector {
+
+    private static EndpointStats[] endpoints(int count) {
+        EndpointStats[] endpoints = new EndpointStats[count];
+        for (int i = 0; i < count; i++) {
+            endpoints[i] = new EndpointStats(i, "tcp://localhost:" + (9000 + i));
+        }
+        return endpoints;
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesAvoidsSlowEndpoint() {
+        EndpointStats[] endpoints = endpoints(2);
+        long now = System.nanoTime();
+        endpoints[0].observe(TimeUnit.MILLISECONDS.toNanos(1), now);
+        endpoints[1].observe(TimeUnit.MILLISECONDS.toNanos(50), now);
+        EndpointSelector selector = new EndpointSelector(endpoints, ChannelOptions.LoadBalancing.POWER_OF_TWO_CHOICES);
+        for (int i = 0; i < 100; i++) {
+            assertSame(endpoints[0], selector.select());
+        }
+        // until the fast endpoint is busier by more than the difference in latency
+        endpoints[0].outstanding.set(100);
+        assertSame(endpoints[1], selector.select());
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        EndpointStats[] endpoints = endpoints(3);
+        endpoints[0].outstanding.set(2);
+        endpoints[1].outstanding.set(1);
+        endpoints[2].outstanding.set(3);
+        EndpointSelector selector = new EndpointSelector(endpoints, ChannelOptions.LoadBalancing.LEAST_OUTSTANDING);
+        for (int i = 0; i < 10; i++) {
+            assertSame(endpoints[1], selector.select());
+        }
+    }
+
+    @Test
+    public void testRoundRobin() {
+        EndpointStats[] endpoints = endpoints(3);
+        EndpointSelector selector = new EndpointSelector(endpoints, ChannelOptions.LoadBalancing.ROUND_ROBIN);
+        int[] picks = new int[3];
+        for (int i = 0; i < 30; i++) {
+            picks[selector.select().index]++;
+        }
+        assertEquals(10, picks[0]);
+        assertEquals(10, picks[1]);
+        assertEquals(10, picks[2]);
+    }
+
+    @Test
+    public void testLatencyRecoversWithTime() {
+        EndpointStats endpoint = endpoints(1)[0];
+        long now = 0;
+        endpoint.observe(TimeUnit.MILLISECONDS.toNanos(1), now);
+        // a stall is taken at face value right away
+        endpoint.observe(TimeUnit.MILLISECONDS.toNanos(100), now);
+        assertEquals(100000, endpoint.getLatencyMicros());
+        for (int i = 0; i < 100; i++) {
+            now += TimeUnit.MILLISECONDS.toNanos(50);
+            endpoint.observe(TimeUnit.MILLISECONDS.toNanos(1), now);
+        }
+        assertTrue("latency -> " + endpoint.getLatencyMicros(), endpoint.getLatencyMicros() < 2000);
+    }
+
+    @Test
+    public void testIdleLatencyDecays() {
+        EndpointStats endpoint = endpoints(1)[0];
+        endpoint.observe(TimeUnit.MILLISECONDS.toNanos(100), 0);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), endpoint.latencyNanos(0), 1);
+        // without responses, e.g. because a slow sample keeps it from being picked, it is tried again eventually
+        assertTrue(endpoint.latencyNanos(TimeUnit.SECONDS.toNanos(3)) < TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testExclude() {
+        EndpointStats[] endpoints = endpoints(3);
+        for (ChannelOptions.LoadBalancing policy : ChannelOptions.LoadBalancing.values()) {
+            EndpointSelector selector = new EndpointSelector(endpoints, policy);
+            for (int i = 0; i < 30; i++) {
+                assertTrue(selector.select(endpoints[1]) != endpoints[1]);
+            }
+        }
+        EndpointStats[] single = endpoints(1);
+        assertSame(single[0], new EndpointSelector(single, ChannelOptions.LoadBalancing.ROUND_ROBIN).select(single[0]));
+    }
+
+    @Test
+    public void testSkipsEjectedEndpoint() {
+        CircuitBreakerPolicy policy = new CircuitBreakerPolicy().setConsecutiveFailures(1).setEjectionMillis(60000);
+        AtomicInteger ejected = new AtomicInteger(0);
+        EndpointStats[] endpoints = new EndpointStats[3];
+        long now = System.nanoTime();
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new EndpointStats(i, "tcp://localhost:" + (9000 + i),
+                    new CircuitBreaker("tcp://localhost:" + (9000 + i), policy, ejected, 3, now));
+        }
+        endpoints[1].onFailure(now);
+        for (ChannelOptions.LoadBalancing policy_ : ChannelOptions.LoadBalancing.values()) {
+            EndpointSelector selector = new EndpointSelector(endpoints, policy_);
+            for (int i = 0; i < 30; i++) {
+                assertTrue(selector.select() != endpoints[1]);
+            }
+            assertSame(endpoints[2], selector.select(endpoints[0]));
+        }
+        // with every endpoint ejected requests still go somewhere
+        endpoints[0].onFailure(now);
+        endpoints[2].onFailure(now);
+        new EndpointSelector(endpoints, ChannelOptions.LoadBalancing.ROUND_ROBIN).select();
+    }
+}
@@ -0,0 +1,77 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEnvelope {
+
+    @Test
+    public void testSplitsPayloadFromEnvelope() throws InvalidProtocolBufferException {
+        TestService.Request payload = TestService.Request.newBuilder().setQuery("foo").build();
+        SocketRpcProtos.Request request = SocketRpcProtos.Request.newBuilder()
+                .setId(42)
+                .setServiceName("service")
+                .setMethodName("method")
+                .setRequestProto(payload.toByteString())
+                .setHeaders(SocketRpcProtos.RequestHeaders.newBuilder().setTimeoutMillis(100))
+                .build();
+        SocketRpcProtos.Request.Builder builder = SocketRpcProtos.Request.newBuilder();
+        Envelope envelope = Envelope.parse(request.toByteArray(),
+                SocketRpcProtos.Request.REQUEST_PROTO_FIELD_NUMBER, builder);
+        assertTrue(envelope.hasPayload());
+        assertFalse(builder.hasRequestProto());
+        assertEquals(request.toBuilder().clearRequestProto().buildPartial(), builder.buildPartial());
+        assertEquals(payload, envelope.parsePayload(TestService.Request.PARSER));
+        assertEquals(payload.toByteString(), envelope.copyPayload());
+    }
+
+    @Test
+    public void testWithoutPayload() throws InvalidProtocolBufferException {
+        SocketRpcProtos.Response response = SocketRpcProtos.Response.newBuilder()
+                .setRequestId(7)
+                .setErrorCode(SocketRpcProtos.ErrorReason.RPC_ERROR)
+                .setErrorMessage("failed")
+                .build();
+        SocketRpcProtos.Response.Builder builder = SocketRpcProtos.Response.newBuilder();
+        Envelope envelope = Envelope.parse(response.toByteArray(),
+                SocketRpcProtos.Response.RESPONSE_PROTO_FIELD_NUMBER, builder);
+        assertFalse(envelope.hasPayload());
+        assertEquals(response, builder.build());
+        assertEquals(ByteString.EMPTY, envelope.copyPayload());
+    }
+
+    @Test
+    public void testLastPayloadWins() throws InvalidProtocolBufferException {
+        TestService.Response first = TestService.Response.newBuilder().setResponse("first").build();
+        TestService.Response last = TestService.Response.newBuilder().setResponse("last").build();
+        byte[] data = SocketRpcProtos.Response.newBuilder()
+                .setResponseProto(first.toByteString())
+                .setRequestId(7)
+                .build().toByteString()
+                .concat(SocketRpcProtos.Response.newBuilder().setResponseProto(last.toByteString()).build().toByteString())
+                .toByteArray();
+        SocketRpcProtos.Response.Builder builder = SocketRpcProtos.Response.newBuilder();
+        Envelope envelope = Envelope.parse(data, SocketRpcProtos.Response.RESPONSE_PROTO_FIELD_NUMBER, builder);
+        assertEquals(7, builder.getRequestId());
+        assertEquals(last, envelope.parsePayload(TestService.Response.PARSER));
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void testTruncatedPayload() throws InvalidProtocolBufferException {
+        byte[] data = SocketRpcProtos.Response.newBuilder()
+                .setRequestId(7)
+                .setResponseProto(ByteString.copyFromUtf8("payload"))
+                .build().toByteArray();
+        // cuts into the payload, which comes first
+        byte[] truncated = new byte[data.length - 4];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        Envelope.parse(truncated, SocketRpcProtos.Response.RESPONSE_PROTO_FIELD_NUMBER,
+                SocketRpcProtos.Response.newBuilder());
+    }
+}
@@ -12,6 +12,22 @@ public class TestExceptions {
         throw Exceptions.getFrom(controller);
     }
 
+    @Test(expected = Exceptions.OverloadedException.class)
+    public void testOverloaded() throws Exception {
+        Controller controller = new Controller();
+        controller.startCancel(Channel.Errors.OVERLOADED);
+        throw Exceptions.getFrom(controller);
+    }
+
+    @Test(expected = Exceptions.OverloadedException.class)
+    public void testServerOverloaded() throws Exception {
+        Controller controller = new Controller();
+        controller.readFrom(SocketRpcProtos.Response.newBuilder()
+                .setErrorCode(SocketRpcProtos.ErrorReason.OVERLOADED)
+                .build());
+        throw Exceptions.getFrom(controller);
+    }
+
     @Test(expected = Exceptions.BadRequestDataError.class)
     public void testServerErrors() throws Exception {
         Controller controller = new Controller();
@@ -0,0 +1,45 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void testBuckets() {
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = LatencyHistogram.bucket(micros);
+            assertTrue(micros < LatencyHistogram.upperBoundMicros(bucket));
+            assertTrue(bucket == 0 || micros >= LatencyHistogram.upperBoundMicros(bucket - 1));
+        }
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram(0.95);
+        assertEquals(-1, histogram.percentileNanos());
+        // 1ms mostly, 20ms for one in ten
+        for (int i = 0; i < 640; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i % 10 == 0 ? 20 : 1));
+        }
+        long p95 = TimeUnit.NANOSECONDS.toMillis(histogram.percentileNanos());
+        assertTrue("p95 -> " + p95, p95 >= 20 && p95 <= 25);
+    }
+
+    @Test
+    public void testFollowsRecentSamples() {
+        LatencyHistogram histogram = new LatencyHistogram(0.5);
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        for (int i = 0; i < 3000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        long p50 = TimeUnit.NANOSECONDS.toMillis(histogram.percentileNanos());
+        assertTrue("p50 -> " + p50, p50 <= 2);
+    }
+}
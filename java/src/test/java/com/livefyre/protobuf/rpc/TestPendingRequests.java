@@ -0,0 +1,70 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestPendingRequests {
+
+    private static class Request implements PendingRequests.Entry {
+        final long id;
+
+        Request(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public long id() {
+            return id;
+        }
+    }
+
+    @Test
+    public void testCapacityRoundsUp() {
+        assertEquals(1, new PendingRequests<Request>(1).capacity());
+        assertEquals(8, new PendingRequests<Request>(5).capacity());
+        assertEquals(8, new PendingRequests<Request>(8).capacity());
+    }
+
+    @Test
+    public void testPutRemove() {
+        PendingRequests<Request> pending = new PendingRequests<>(4);
+        Request request = new Request(7);
+        assertTrue(pending.put(request));
+        assertSame(request, pending.get(7));
+        assertSame(request, pending.remove(7));
+        assertNull(pending.remove(7));
+        assertNull(pending.get(7));
+    }
+
+    @Test
+    public void testLappedSlotIsNotOverwritten() {
+        PendingRequests<Request> pending = new PendingRequests<>(4);
+        Request stuck = new Request(1);
+        assertTrue(pending.put(stuck));
+        assertFalse(pending.put(new Request(5)));
+        assertSame(stuck, pending.occupant(5));
+        // a response for the newer id must not remove the older request
+        assertNull(pending.remove(5));
+        assertSame(stuck, pending.get(1));
+    }
+
+    @Test
+    public void testRemoveAll() {
+        PendingRequests<Request> pending = new PendingRequests<>(4);
+        for (long id = 1; id <= 3; id++) {
+            pending.put(new Request(id));
+        }
+        List<Request> removed = new ArrayList<>();
+        pending.removeAll(removed::add);
+        assertEquals(3, removed.size());
+        assertNull(pending.get(2));
+    }
+}
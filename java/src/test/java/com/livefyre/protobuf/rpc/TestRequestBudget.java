@@ -0,0 +1,36 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestRequestBudget {
+
+    @Test
+    public void testRatio() {
+        RequestBudget budget = new RequestBudget(0.05, 100);
+        assertFalse(budget.tryWithdraw());
+        int allowed = 0;
+        for (int i = 0; i < 1000; i++) {
+            budget.deposit();
+            if (budget.tryWithdraw()) {
+                allowed++;
+            }
+        }
+        assertEquals(50, allowed);
+    }
+
+    @Test
+    public void testBalanceIsCapped() {
+        RequestBudget budget = new RequestBudget(0.5, 2);
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        assertEquals(2.0, budget.getBalance(), 0.0);
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+}
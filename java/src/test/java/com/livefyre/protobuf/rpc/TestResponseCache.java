@@ -0,0 +1,98 @@
+package com.livefyre.protobuf.rpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestResponseCache {
+
+    private static final long TTL = TimeUnit.SECONDS.toNanos(10);
+
+    private static ResponseCache.Key key(int i) {
+        return new ResponseCache.Key("test.Service.Test", ByteString.copyFromUtf8("request-" + i));
+    }
+
+    private static Message response(int size) {
+        StringBuilder response = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            response.append('x');
+        }
+        return TestService.Response.newBuilder().setResponse(response.toString()).build();
+    }
+
+    @Test
+    public void testHitMissAndExpiry() {
+        ResponseCache cache = new ResponseCache(1 << 20);
+        assertNull(cache.get(key(1), 0));
+        Message response = response(10);
+        cache.put(key(1), response, TTL, 0);
+        assertSame(response, cache.get(key(1), 1));
+        assertNull(cache.get(key(1), TTL));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getEntries());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testBoundedByBytes() {
+        long maxBytes = 64 * 1024;
+        ResponseCache cache = new ResponseCache(maxBytes);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(key(i), response(900), TTL, 0);
+            assertTrue(cache.getBytes() <= maxBytes);
+        }
+        assertTrue(cache.getEntries() > 50);
+        // too large to ever fit
+        cache.put(key(-1), response((int) maxBytes), TTL, 0);
+        assertNull(cache.get(key(-1), 0));
+    }
+
+    @Test
+    public void testPopularEntriesSurviveScan() {
+        ResponseCache cache = new ResponseCache(64 * 1024);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 20; i++) {
+                if (cache.get(key(i), 0) == null) {
+                    cache.put(key(i), response(900), TTL, 0);
+                }
+            }
+        }
+        // one-off requests, several times what the cache holds
+        for (int i = 1000; i < 2000; i++) {
+            cache.get(key(i), 0);
+            cache.put(key(i), response(900), TTL, 0);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(cache.get(key(i), 0));
+        }
+        assertTrue(cache.getRejections() > 0);
+    }
+
+    @Test
+    public void testFrequencySketch() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(42);
+        }
+        assertEquals(5, sketch.frequency(42));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(42);
+        }
+        // saturates
+        assertEquals(15, sketch.frequency(42));
+        // and ages
+        for (int i = 0; i < 20000; i++) {
+            sketch.increment(i * 31 + 1000);
+        }
+        assertTrue(sketch.frequency(42) < 15);
+    }
+}
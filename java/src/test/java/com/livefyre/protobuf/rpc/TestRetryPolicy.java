@@ -0,0 +1,39 @@
+package com.livefyre.protobuf.rpc;
+
+import com.googlecode.protobuf.socketrpc.SocketRpcProtos.ErrorReason;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestRetryPolicy {
+
+    @Test
+    public void testBackoffIsCappedAndJittered() {
+        RetryPolicy policy = new RetryPolicy().setInitialBackoffMillis(10).setMaxBackoffMillis(100);
+        long maxSeen = 0;
+        long minSeen = Long.MAX_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long first = policy.backoffNanos(1);
+            assertTrue(first <= TimeUnit.MILLISECONDS.toNanos(10));
+            long late = policy.backoffNanos(40);
+            assertTrue(late <= TimeUnit.MILLISECONDS.toNanos(100));
+            maxSeen = Math.max(maxSeen, late);
+            minSeen = Math.min(minSeen, late);
+        }
+        assertTrue(maxSeen > TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(minSeen < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testRetryableErrors() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.isRetryable(ErrorReason.RPC_ERROR));
+        assertFalse(policy.isRetryable(ErrorReason.NO_ERROR));
+        assertFalse(policy.isRetryable(ErrorReason.METHOD_NOT_FOUND));
+        policy.setRetryableErrors();
+        assertFalse(policy.isRetryable(ErrorReason.RPC_ERROR));
+    }
+}
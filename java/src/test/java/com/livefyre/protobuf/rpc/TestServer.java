@@ -1,5 +1,6 @@
 package com.livefyre.protobuf.rpc;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
@@ -10,13 +11,22 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zeromq.ZContext;
+import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 public class TestServer {
 
     private static final Logger logger = LoggerFactory.getLogger(TestServer.class);
@@ -123,4 +133,232 @@ public class TestServer {
         controller.readFrom(response);
         throw Exceptions.getFrom(controller);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCanceledRequestIsDropped() throws InvalidProtocolBufferException {
+        socket = context.createSocket(ZMQ.DEALER);
+        socket.connect(endpoint);
+        // the cancel overtakes its request, which is then never dispatched
+        sendRequest(SocketRpcProtos.Request.newBuilder()
+                .setId(1)
+                .setServiceName("")
+                .setMethodName("")
+                .setRequestProto(ByteString.EMPTY)
+                .setCancel(true));
+        sendRequest(SocketRpcProtos.Request.newBuilder()
+                .setId(1)
+                .setServiceName("com.livefyre.protobuf.rpc.Service")
+                .setMethodName("Test")
+                .setRequestProto(TestService.Request.newBuilder().setQuery("foo").build().toByteString()));
+        sendRequest(SocketRpcProtos.Request.newBuilder()
+                .setId(2)
+                .setServiceName("com.livefyre.protobuf.rpc.Service")
+                .setMethodName("Test")
+                .setRequestProto(TestService.Request.newBuilder().setQuery("bar").build().toByteString()));
+        ZMsg message = ZMsg.recvMsg(socket);
+        SocketRpcProtos.Response response = SocketRpcProtos.Response.parseFrom(message.getLast().getData());
+        assertEquals(2, response.getRequestId());
+        socket.setReceiveTimeOut(200);
+        assertNull(ZMsg.recvMsg(socket));
+    }
+
+    @Test
+    public void testOldestEarlyCancelIsDropped() throws InvalidProtocolBufferException {
+        socket = context.createSocket(ZMQ.DEALER);
+        socket.connect(endpoint);
+        // one more cancel than the server keeps, so the first is forgotten and its request runs after all
+        for (int id = 1; id <= Server.MAX_EARLY_CANCELS + 1; id++) {
+            sendRequest(SocketRpcProtos.Request.newBuilder()
+                    .setId(id)
+                    .setServiceName("")
+                    .setMethodName("")
+                    .setRequestProto(ByteString.EMPTY)
+                    .setCancel(true));
+        }
+        for (int id = 1; id <= 2; id++) {
+            sendRequest(SocketRpcProtos.Request.newBuilder()
+                    .setId(id)
+                    .setServiceName("com.livefyre.protobuf.rpc.Service")
+                    .setMethodName("Test")
+                    .setRequestProto(TestService.Request.newBuilder().setQuery("foo").build().toByteString()));
+        }
+        socket.setReceiveTimeOut(2000);
+        ZMsg message = ZMsg.recvMsg(socket);
+        assertNotNull(message);
+        assertEquals(1, SocketRpcProtos.Response.parseFrom(message.getLast().getData()).getRequestId());
+        socket.setReceiveTimeOut(200);
+        assertNull(ZMsg.recvMsg(socket));
+        assertEquals(1, server.getDroppedCancels());
+    }
+
+    @Test
+    public void testExpiredRequestIsDropped() throws InvalidProtocolBufferException {
+        socket = context.createSocket(ZMQ.DEALER);
+        socket.connect(endpoint);
+        // keeps the only worker busy for longer than the next request's client waits
+        sendRequest(SocketRpcProtos.Request.newBuilder()
+                .setId(1)
+                .setServiceName("com.livefyre.protobuf.rpc.Service")
+                .setMethodName("TestTimeout")
+                .setRequestProto(TestService.Request.newBuilder().setQuery("foo").build().toByteString()));
+        sendRequest(SocketRpcProtos.Request.newBuilder()
+                .setId(2)
+                .setServiceName("com.livefyre.protobuf.rpc.Service")
+                .setMethodName("Test")
+                .setRequestProto(TestService.Request.newBuilder().setQuery("bar").build().toByteString())
+                .setHeaders(SocketRpcProtos.RequestHeaders.newBuilder().setTimeoutMillis(100)));
+        sendRequest(SocketRpcProtos.Request.newBuilder()
+                .setId(3)
+                .setServiceName("com.livefyre.protobuf.rpc.Service")
+                .setMethodName("Test")
+                .setRequestProto(TestService.Request.newBuilder().setQuery("baz").build().toByteString()));
+        assertEquals(1, SocketRpcProtos.Response.parseFrom(ZMsg.recvMsg(socket).getLast().getData()).getRequestId());
+        assertEquals(3, SocketRpcProtos.Response.parseFrom(ZMsg.recvMsg(socket).getLast().getData()).getRequestId());
+        assertEquals(1, server.getExpiredRequests());
+    }
+
+    @Test
+    public void testPayloadFrame() throws InvalidProtocolBufferException {
+        socket = context.createSocket(ZMQ.DEALER);
+        socket.connect(endpoint);
+        ZMsg request = new ZMsg();
+        request.add(new ZFrame(""));
+        request.add(new ZFrame(SocketRpcProtos.Request.newBuilder()
+                .setId(1)
+                .setServiceName("com.livefyre.protobuf.rpc.Service")
+                .setMethodName("Test")
+                .buildPartial().toByteArray()));
+        request.add(new ZFrame(TestService.Request.newBuilder().setQuery("foo").build().toByteArray()));
+        request.send(socket);
+        // answered the way it was asked, with the response proto in a frame of its own
+        ZMsg message = ZMsg.recvMsg(socket);
+        assertEquals(3, message.size());
+        TestService.Response payload = TestService.Response.parseFrom(message.removeLast().getData());
+        SocketRpcProtos.Response response = SocketRpcProtos.Response.parseFrom(message.getLast().getData());
+        assertEquals(1, response.getRequestId());
+        assertFalse(response.hasResponseProto());
+        assertTrue(response.getAcceptsPayloadFrame());
+        assertEquals("foo", payload.getResponse());
+
+        sendRequest(SocketRpcProtos.Request.newBuilder()
+                .setId(2)
+                .setServiceName("com.livefyre.protobuf.rpc.Service")
+                .setMethodName("Test")
+                .setRequestProto(TestService.Request.newBuilder().setQuery("bar").build().toByteString()));
+        message = ZMsg.recvMsg(socket);
+        assertEquals(2, message.size());
+        response = SocketRpcProtos.Response.parseFrom(message.getLast().getData());
+        assertEquals(2, response.getRequestId());
+        assertTrue(response.getAcceptsPayloadFrame());
+        assertEquals("bar", TestService.Response.parseFrom(response.getResponseProto()).getResponse());
+    }
+
+    @Test
+    public void testMethodIndex() throws InvalidProtocolBufferException {
+        socket = context.createSocket(ZMQ.DEALER);
+        socket.connect(endpoint);
+        sendRequest(SocketRpcProtos.Request.newBuilder()
+                .setId(1)
+                .setServiceName("")
+                .setMethodName("")
+                .setMethodIndex(TestService.Service.getDescriptor().findMethodByName("Test").getIndex())
+                .setRequestProto(TestService.Request.newBuilder().setQuery("foo").build().toByteString()));
+        SocketRpcProtos.Response response =
+                SocketRpcProtos.Response.parseFrom(ZMsg.recvMsg(socket).getLast().getData());
+        assertEquals(1, response.getRequestId());
+        assertEquals(MethodTable.fingerprint(TestService.Service.getDescriptor()), response.getMethodTable());
+        assertEquals("foo", TestService.Response.parseFrom(response.getResponseProto()).getResponse());
+
+        sendRequest(SocketRpcProtos.Request.newBuilder()
+                .setId(2)
+                .setServiceName("")
+                .setMethodName("")
+                .setMethodIndex(TestService.Service.getDescriptor().getMethods().size())
+                .setRequestProto(TestService.Request.newBuilder().setQuery("foo").build().toByteString()));
+        response = SocketRpcProtos.Response.parseFrom(ZMsg.recvMsg(socket).getLast().getData());
+        assertEquals(2, response.getRequestId());
+        assertEquals(SocketRpcProtos.ErrorReason.METHOD_NOT_FOUND, response.getErrorCode());
+    }
+
+    @Test
+    public void testDecompressedSizeIsLimited() throws InvalidProtocolBufferException {
+        String limitedEndpoint = "tcp://localhost:" + TestServer.getAvailablePort();
+        ExecutorService limitedThreads = Executors.newFixedThreadPool(1);
+        Server limitedServer = Server.create(limitedEndpoint, 1, new Service(),
+                new CompressionPolicy().setMaxDecompressedBytes(1024));
+        limitedThreads.execute(limitedServer::start);
+        try {
+            socket = context.createSocket(ZMQ.DEALER);
+            socket.connect(limitedEndpoint);
+            byte[] query = TestService.Request.newBuilder().setQuery(new String(new char[4096])).build().toByteArray();
+            sendRequest(SocketRpcProtos.Request.newBuilder()
+                    .setId(1)
+                    .setServiceName("com.livefyre.protobuf.rpc.Service")
+                    .setMethodName("Test")
+                    .setCompression(DeflateCodec.ID)
+                    .setAcceptedCompression(DeflateCodec.ID)
+                    .setRequestProto(ByteString.copyFrom(new DeflateCodec().compress(query, 0, query.length))));
+            SocketRpcProtos.Response response =
+                    SocketRpcProtos.Response.parseFrom(ZMsg.recvMsg(socket).getLast().getData());
+            assertEquals(1, response.getRequestId());
+            assertEquals(SocketRpcProtos.ErrorReason.BAD_REQUEST_PROTO, response.getErrorCode());
+        } finally {
+            limitedServer.stop();
+            limitedThreads.shutdown();
+        }
+    }
+
+    @Test
+    public void testOverloaded() throws Exception {
+        String busyEndpoint = "tcp://localhost:" + TestServer.getAvailablePort();
+        ExecutorService busyThreads = Executors.newFixedThreadPool(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Server busyServer = Server.create(busyEndpoint, 1, new Service() {
+            @Override
+            public void test(RpcController controller, TestService.Request request,
+                             RpcCallback<TestService.Response> done) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.test(controller, request, done);
+            }
+        }, null, 1);
+        busyThreads.execute(busyServer::start);
+        try {
+            socket = context.createSocket(ZMQ.DEALER);
+            socket.connect(busyEndpoint);
+            // the first request takes the only handler thread, the second the only place in the queue
+            for (int id = 1; id <= 3; id++) {
+                sendRequest(SocketRpcProtos.Request.newBuilder()
+                        .setId(id)
+                        .setServiceName("com.livefyre.protobuf.rpc.Service")
+                        .setMethodName("Test")
+                        .setRequestProto(TestService.Request.newBuilder().setQuery("foo").build().toByteString()));
+            }
+            SocketRpcProtos.Response response =
+                    SocketRpcProtos.Response.parseFrom(ZMsg.recvMsg(socket).getLast().getData());
+            assertEquals(3, response.getRequestId());
+            assertEquals(SocketRpcProtos.ErrorReason.OVERLOADED, response.getErrorCode());
+
+            release.countDown();
+            for (int id = 1; id <= 2; id++) {
+                response = SocketRpcProtos.Response.parseFrom(ZMsg.recvMsg(socket).getLast().getData());
+                assertEquals(id, response.getRequestId());
+                assertFalse(response.hasErrorCode());
+            }
+        } finally {
+            release.countDown();
+            busyServer.stop();
+            busyThreads.shutdown();
+        }
+    }
+
+    private void sendRequest(SocketRpcProtos.Request.Builder request) {
+        ZMsg message = new ZMsg();
+        message.add(new ZFrame(""));
+        message.add(new ZFrame(request.build().toByteArray()));
+        message.send(socket);
+    }
+}
@@ -0,0 +1,80 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSubmissionRing {
+
+    @Test
+    public void testOfferUntilFull() {
+        SubmissionRing<Integer> ring = new SubmissionRing<>(3);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(4, ring.drain(drained::add, 10));
+        assertEquals(4, drained.size());
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(4));
+    }
+
+    @Test
+    public void testDrainLimit() {
+        SubmissionRing<Integer> ring = new SubmissionRing<>(8);
+        for (int i = 0; i < 5; i++) {
+            ring.offer(i);
+        }
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(2, ring.drain(drained::add, 2));
+        assertEquals(3, ring.drain(drained::add, 10));
+        assertEquals(0, ring.drain(drained::add, 10));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (int) drained.get(i));
+        }
+    }
+
+    @Test
+    public void testManyProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20000;
+        SubmissionRing<long[]> ring = new SubmissionRing<>(64);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    long[] element = new long[]{producer, i};
+                    while (!ring.offer(element)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        // every producer's elements must come out once each and in the order that producer offered them
+        long[] next = new long[producers];
+        int total = 0;
+        while (total < producers * perProducer) {
+            int drained = ring.drain(element -> {
+                assertEquals(next[(int) element[0]], element[1]);
+                next[(int) element[0]]++;
+            }, 16);
+            if (drained == 0) {
+                Thread.yield();
+            }
+            total += drained;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,65 @@
+package com.livefyre.protobuf.rpc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestTimeoutWheel {
+
+    private TimeoutWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimeoutWheel(5, 8);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void testFires() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(latch::countDown, 50, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testFiresAfterSeveralRounds() throws InterruptedException {
+        // 8 buckets of 5ms, so this wraps the wheel a few times
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(latch::countDown, 150, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        AtomicInteger fired = new AtomicInteger(0);
+        TimeoutWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        Thread.sleep(100);
+        assertEquals(0, fired.get());
+    }
+
+    @Test
+    public void testThrowingTaskDoesNotStopWheel() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(() -> { throw new RuntimeException("boom"); }, 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(latch::countDown, 30, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+}
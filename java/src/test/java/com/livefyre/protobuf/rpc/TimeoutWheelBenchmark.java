@@ -0,0 +1,119 @@
+package com.livefyre.protobuf.rpc;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares schedule + cancel cost of java.util.Timer, as Channel used to, against TimeoutWheel with many timeouts
+ * outstanding and several caller threads, which is what a busy channel looks like. Also reports the heap still
+ * retained once every operation has finished.
+ *
+ * Not run by surefire; invoke with main(). Arguments: [outstanding] [operations] [threads]
+ */
+public class TimeoutWheelBenchmark {
+
+    private static final long DELAY_MILLIS = 60000;
+
+    private interface Scheduler {
+        Object schedule();
+        void cancel(Object timeout);
+        void stop();
+    }
+
+    private static class TimerScheduler implements Scheduler {
+        final Timer timer = new Timer();
+
+        @Override
+        public Object schedule() {
+            TimerTask task = new TimerTask() {
+                @Override
+                public void run() {}
+            };
+            timer.schedule(task, DELAY_MILLIS);
+            return task;
+        }
+
+        @Override
+        public void cancel(Object timeout) {
+            ((TimerTask) timeout).cancel();
+        }
+
+        @Override
+        public void stop() {
+            timer.cancel();
+        }
+    }
+
+    private static class WheelScheduler implements Scheduler {
+        final TimeoutWheel wheel = new TimeoutWheel();
+        final Runnable task = () -> {};
+
+        @Override
+        public Object schedule() {
+            return wheel.schedule(task, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void cancel(Object timeout) {
+            ((TimeoutWheel.Timeout) timeout).cancel();
+        }
+
+        @Override
+        public void stop() {
+            wheel.stop();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void run(String name, Scheduler scheduler, int outstanding, int operations, int threads)
+            throws InterruptedException {
+        long baseHeap = usedHeap();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Object[] timeouts = new Object[outstanding / threads];
+                for (int i = 0; i < timeouts.length; i++) {
+                    timeouts[i] = scheduler.schedule();
+                }
+                for (int i = 0; i < operations / threads; i++) {
+                    int slot = i % timeouts.length;
+                    scheduler.cancel(timeouts[slot]);
+                    timeouts[slot] = scheduler.schedule();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        // give the wheel time to drain its queues and unlink what was canceled
+        Thread.sleep(1000);
+        long retained = usedHeap() - baseHeap;
+        scheduler.stop();
+        System.out.printf("%-5s threads=%d outstanding=%d %.1fns/op retained=%.1fMB%n", name, threads, outstanding,
+                (double) elapsed / (outstanding + operations), retained / 1e6);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int outstanding = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        for (int round = 0; round < 3; round++) {
+            run("timer", new TimerScheduler(), outstanding, operations, threads);
+            run("wheel", new WheelScheduler(), outstanding, operations, threads);
+        }
+    }
+}
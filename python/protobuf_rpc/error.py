@@ -90,6 +90,13 @@ class IOError(ProtobufError):
         super(IOError, self).__init__(message, IO_ERROR)
 
 
+class OverloadedError(ProtobufError):
+    '''Exception generated for an OverloadedError.'''
+
+    def __init__(self, message):
+        super(OverloadedError, self).__init__(message, OVERLOADED)
+
+
 ERROR_CODE_TO_ERROR_CLASS = {
     BAD_REQUEST_DATA: BadRequestDataError,
     BAD_REQUEST_PROTO: BadRequestProtoError,
@@ -100,4 +107,5 @@ ERROR_CODE_TO_ERROR_CLASS = {
     BAD_RESPONSE_PROTO: BadResponseProtoError,
     UNKNOWN_HOST: UnknownHostError,
     IO_ERROR: IOError,
+    OVERLOADED: OverloadedError,
 }